@@ -0,0 +1,141 @@
+package com.opswat.metascan.smartfolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Statically walks directory trees in parallel.
+ * 
+ * Each directory is listed by its own task in a <code>ForkJoinPool</code>, so
+ * the sub-directories of a large tree are listed at the same time by several
+ * <code>Thread</code>s. The attributes of every entry are read once, while the
+ * directory is listed, and every regular <code>File</code> is handed to the
+ * <code>FileHandler</code> as soon as it is found; the tree is never collected
+ * into a list first.<br><br>
+ * 
+ * Symbolic links to <code>File</code>s are followed, but symbolic links to
+ * directories are not, so that a link cannot make the walk loop forever. The
+ * number of <code>Thread</code>s can be changed with the
+ * <code>smartfolder.enumerator.threads</code> system property. Entries excluded
+ * by the <code>ScanFilter</code> are skipped, along with everything beneath them.
+ * 
+ * @author Tristan Currens
+ * @see ScanManager
+ */
+public class DirectoryEnumerator {
+    
+    /**
+     * The number of <code>Thread</code>s used to list directories.
+     */
+    private static final int THREAD_COUNT = Math.max(1, Integer.getInteger("smartfolder.enumerator.threads", Runtime.getRuntime().availableProcessors()));
+    
+    /**
+     * The pool that runs every enumeration task.
+     */
+    private static final ForkJoinPool pool = new ForkJoinPool(THREAD_COUNT);
+    
+    /**
+     * Receives the <code>File</code>s found by the <code>DirectoryEnumerator</code>.
+     * 
+     * The handler is called from many <code>Thread</code>s at once, so it must be
+     * safe to call concurrently.
+     */
+    public interface FileHandler {
+        
+        /**
+         * Handles a regular <code>File</code> that was found.
+         * 
+         * @param file the <code>File</code>
+         * @param attributes the attributes read while the directory was listed
+         */
+        void handleFile(File file, BasicFileAttributes attributes);
+    }
+    
+    /**
+     * Walks the specified directory and all of its sub-directories in the background.
+     * 
+     * @param directory the directory to walk
+     * @param handler receives every regular <code>File</code> that is found
+     * @return the task walking the directory, which completes once the whole
+     * tree has been walked
+     */
+    public static ForkJoinTask<Void> enumerate(File directory, FileHandler handler) {
+        return pool.submit(new EnumerationTask(directory.toPath(), handler));
+    }
+    
+    /**
+     * Lists a single directory, forking a new task for each of its sub-directories.
+     */
+    private static class EnumerationTask extends RecursiveAction {
+        
+        private static final long serialVersionUID = 1L;
+        
+        private final Path directory;
+        private final FileHandler handler;
+        
+        EnumerationTask(Path directory, FileHandler handler) {
+            this.directory = directory;
+            this.handler = handler;
+        }
+        
+        @Override
+        protected void compute() {
+            final ArrayList<EnumerationTask> subtasks = new ArrayList();
+            
+            try {
+                // a depth of 1 only visits the entries of this directory; each
+                // sub-directory is handed to a task of its own
+                Files.walkFileTree(directory, EnumSet.noneOf(FileVisitOption.class), 1, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult visitFile(Path path, BasicFileAttributes attributes) {
+                        if (ScanFilter.isExcluded(path)) {
+                            // skip excluded Files and subtrees
+                        } else if (attributes.isDirectory()) {
+                            EnumerationTask subtask = new EnumerationTask(path, handler);
+                            subtask.fork();
+                            subtasks.add(subtask);
+                        } else if (attributes.isRegularFile()) {
+                            handler.handleFile(path.toFile(), attributes);
+                        } else if (attributes.isSymbolicLink()) {
+                            handleLink(path);
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+                    
+                    @Override
+                    public FileVisitResult visitFileFailed(Path path, IOException e) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            } catch (IOException e) {}
+            
+            for (EnumerationTask subtask : subtasks)
+                subtask.join();
+        }
+        
+        /**
+         * Hands the target of a symbolic link to the <code>FileHandler</code> if
+         * it is a regular <code>File</code>.
+         * 
+         * @param link the symbolic link
+         */
+        private void handleLink(Path link) {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(link, BasicFileAttributes.class);
+                if (attributes.isRegularFile())
+                    handler.handleFile(link.toFile(), attributes);
+            } catch (IOException e) {}
+        }
+    }
+}
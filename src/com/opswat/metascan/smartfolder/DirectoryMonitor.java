@@ -4,14 +4,23 @@ import com.opswat.metascan.smartfolder.settings.SettingsManager;
 import com.opswat.metascan.smartfolder.ui.UserInterfaceManager;
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.FileSystems;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardWatchEventKinds;
 import java.nio.file.WatchEvent;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Monitors specified directories on the user's system for any changes or deletions. <br><br>
@@ -20,50 +29,103 @@ import java.util.HashMap;
  * to do with changed files:<ul>
  * 
  * <li><b>Files</b></li><ol>
- *      <li><b>Creation: </b> Scan the file</li>
- *      <li><b>Update:   </b> Scan the file</li></ol>
+ *      <li><b>Creation: </b> Scan the file once it has settled (see <code>FileDebouncer</code>)</li>
+ *      <li><b>Update:   </b> Scan the file once it has settled (see <code>FileDebouncer</code>)</li></ol>
  * 
  * <li><b>Directories</b></li><ol>
  *      <li><b>Creation: </b> Register the directory to be watched</li>
  *      <li><b>Rename:   </b> Remove references to the old name of the directory
  *                            and adds new references to the new name of the directory
- *      <li><b>Deletion: </b> Remove references to the directory</li></ul>
+ *      <li><b>Deletion: </b> Remove references to the directory</li></ol>
+ * 
+ * <li><b>Overflow</b></li><ol>
+ *      <li>Rescan the directory whose events were lost, scanning any new or changed
+ *          files and registering any new sub-directories. Rescans of the same
+ *          directory are spaced at least <code>smartfolder.overflow.rescanIntervalMillis</code>
+ *          apart (5 seconds by default)</li></ol></ul>
+ * 
+ * SmartFolders whose <code>MonitoringStrategy</code> is <code>POLL</code> are not
+ * watched at all; they are handed to the <code>DirectoryPoller</code> instead.
+ * The same happens to any directory tree that is registered once the
+ * <code>WatchBudget</code> has been spent. Directories excluded by the
+ * <code>ScanFilter</code> are never registered.
  * 
  * @author Tristan Currens
  */
 public class DirectoryMonitor {
     
     /**
-     * A list of directories currently being watched by the <code>DirectoryMonitor</code>.
+     * A mapping from <code>Path</code> to <code>WatchKey</code>.
+     * 
+     * This map will contain one entry for each directory currently being monitored
+     * by the <code>DirectoryMonitor</code>, so it doubles as the index used to
+     * check whether a directory is registered.
      */
-    private static ArrayList<File> registeredDirectories = new ArrayList();
+    private static final ConcurrentHashMap<Path, WatchKey> pathToWatchKey   = new ConcurrentHashMap();
     
     /**
-     * A mapping from <code>Path</code> to <code>WatchKey</code>.
+     * A mapping from <code>WatchKey</code> to <code>Path</code>.
      * 
-     * This <code>HashMap</code> will contain one entry for each directory currently
-     * being monitored by the <code>DirectoryMonitor</code>.
+     * This map will contain one entry for each directory currently being monitored
+     * by the <code>DirectoryMonitor</code>.
      */
-    private static HashMap<Path, WatchKey> pathToWatchKey   = new HashMap();
+    private static final ConcurrentHashMap<WatchKey, Path> watchKeyToPath   = new ConcurrentHashMap();
     
     /**
-     * A mapping from <code>WatchKey</code> to <code>Path</code>.
+     * A mapping from each registered directory to its registered sub-directories.
+     * 
+     * This allows a directory's subtree to be unregistered without searching
+     * through every other registered directory.
+     */
+    private static final ConcurrentHashMap<Path, Set<Path>> registeredChildren = new ConcurrentHashMap();
+    
+    /**
+     * The shortest amount of time (in nanoseconds) between two rescans of the
+     * same directory after its events overflowed.
+     */
+    private static final long RESCAN_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(Math.max(0, Long.getLong("smartfolder.overflow.rescanIntervalMillis", 5000)));
+    
+    /**
+     * The directories that have a rescan waiting to run.
+     */
+    private static final Set<Path> scheduledRescans = ConcurrentHashMap.<Path>newKeySet();
+    
+    /**
+     * A mapping from directory to the time (from <code>System.nanoTime</code>)
+     * at which it was last rescanned.
+     */
+    private static final ConcurrentHashMap<Path, Long> lastRescanNanos = new ConcurrentHashMap();
+    
+    /**
+     * Runs the rescans of directories whose events overflowed.
+     */
+    private static ScheduledExecutorService rescanScheduler;
+    
+    /**
+     * A mapping from each volume to the <code>WatchService</code> that stores
+     * the events thrown by changes within its directories.
      * 
-     * This <code>HashMap</code> will contain one entry for each directory currently
-     * being monitored by the <code>DirectoryMonitor</code>.
+     * Volumes are told apart by their <code>FileStore</code>, as every path on
+     * Linux and OS X shares the same root. Each <code>WatchService</code> has a
+     * <code>Thread</code> of its own, so a burst of changes on one volume does
+     * not hold up the events of the others.
      */
-    private static HashMap<WatchKey, Path> watchKeyToPath   = new HashMap();
+    private static final ConcurrentHashMap<Object, WatchService> watchServices = new ConcurrentHashMap();
     
     /**
-     * The <code>WatchService</code> is responsible for storing events thrown by
-     * changes within directories.
+     * Registers and unregisters the directories that are created and deleted
+     * while they are being watched.
+     * 
+     * Registering a new directory tree can take a long time, so this is kept off
+     * of the <code>Thread</code>s that process events. A single <code>Thread</code>
+     * is used so that the registrations happen in the order of the events.
      */
-    private static WatchService watchService;
+    private static ExecutorService registrationExecutor;
     
     /**
      * Stores whether or not the <code>DirectoryMonitor</code> has been initialized.
      */
-    private static boolean running = false;
+    private static volatile boolean running = false;
     
     /**
      * Registers the specified directory with the <code>WatchService</code>.
@@ -72,49 +134,169 @@ public class DirectoryMonitor {
      * alert the <code>WatchService</code> when a change has been made to the 
      * directory. This method will also recursively register any sub-directories
      * as well as scanning any <code>File</code>s that are encountered along the
-     * way.
+     * way. If the user chose to poll the directory, it is registered with the
+     * <code>DirectoryPoller</code> instead.
      * 
      * @param directory the directory to register
      */
     public static void registerDirectory(File directory) {
+        registerDirectory(directory, new RegistrationProgress());
+    }
+    
+    /**
+     * Registers the specified directory, reporting the progress of the
+     * registration as it goes.
+     * 
+     * If the registration is cancelled, whatever was registered so far is
+     * unregistered again.
+     * 
+     * @param directory the directory to register
+     * @param progress the progress of the registration
+     * @see #registerDirectory(java.io.File)
+     */
+    public static void registerDirectory(File directory, RegistrationProgress progress) {
+        registerDirectory(directory, progress, true);
+    }
+    
+    /**
+     * Registers the specified directory.
+     * 
+     * @param directory the directory to register
+     * @param progress the progress of the registration
+     * @param initialScan whether the directory is being added as a SmartFolder,
+     * rather than registered because it appeared in one
+     * @see #pushRegisteredFile(java.io.File, long, boolean)
+     */
+    private static void registerDirectory(File directory, RegistrationProgress progress, boolean initialScan) {
+        // update the user interface and store the directory in the user's
+        // settings so that the directory will automatically be registered the
+        // next time the user starts the program
+        if (attachDirectory(directory, progress, initialScan))
+            updateMonitoredDirectories();
+    }
+    
+    /**
+     * Registers the specified directory without updating the user interface.
+     * 
+     * @param directory the directory to register
+     * @param progress the progress of the registration
+     * @param initialScan whether the directory is being added as a SmartFolder
+     * @return <code>true</code> if the directory was registered; <code>false</code>
+     * if it is not a directory or is already registered
+     */
+    private static boolean attachDirectory(File directory, RegistrationProgress progress, boolean initialScan) {
         // ensures that the specified File is a directory and that it isn't
         // currently registered
-        if (directory.isDirectory() && !registeredDirectories.contains(directory)) {
+        if (directory.isDirectory() && !pathToWatchKey.containsKey(directory.toPath()) && !DirectoryPoller.isPolled(directory)) {
             if (!running)
                 start();
             
-            try {
-                Path directoryPath = directory.toPath();    // the Path to the directory
-                
-                // the WatchKey that monitors this directory
-                WatchKey watchKey = directoryPath.register(
-                        watchService, 
-                        StandardWatchEventKinds.ENTRY_CREATE,
-                        StandardWatchEventKinds.ENTRY_MODIFY,
-                        StandardWatchEventKinds.ENTRY_DELETE);
-
-                // put the Path and WatchKey into a two-way mapping
-                pathToWatchKey.put(directoryPath, watchKey);
-                watchKeyToPath.put(watchKey, directoryPath);
+            if (SettingsManager.getMonitoringStrategy(directory) == MonitoringStrategy.POLL)
+                DirectoryPoller.register(directory, progress, initialScan);
+            else
+                registerSubtree(directory, progress, initialScan);
+            
+            if (progress.isCancelled()) {
+                if (DirectoryPoller.isPolledRoot(directory))
+                    DirectoryPoller.unregister(directory);
+                else
+                    detachSubtree(directory.toPath());
+            }
+            return true;
+        }
+        return false;
+    }
+    
+    /**
+     * Registers the specified directory and all of its sub-directories, and
+     * scans the <code>File</code>s inside of them.
+     * 
+     * @param directory the directory to register
+     * @param progress the progress of the registration
+     * @param initialScan whether the directory is being added as a SmartFolder
+     */
+    private static void registerSubtree(File directory, RegistrationProgress progress, boolean initialScan) {
+        Path directoryPath = directory.toPath();    // the Path to the directory
+        Path parentPath = directoryPath.getParent();
+        
+        // index the directory under its parent, so that it is unregistered along
+        // with the parent even if it was registered on its own first
+        if (parentPath != null && pathToWatchKey.containsKey(parentPath))
+            getRegisteredChildren(parentPath).add(directoryPath);
+        if (pathToWatchKey.containsKey(directoryPath) || DirectoryPoller.isPolled(directory))
+            return;
+        
+        // once the budget is spent, poll the rest of the tree instead
+        if (!WatchBudget.hasRoom()) {
+            DirectoryPoller.register(directory, progress, initialScan);
+            WatchBudget.recordDemotion(directoryPath);
+            return;
+        }
+        
+        try {
+            // the WatchKey that monitors this directory
+            WatchKey watchKey = directoryPath.register(
+                    getWatchService(directoryPath), 
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+            
+            // put the Path and WatchKey into a two-way mapping
+            pathToWatchKey.put(directoryPath, watchKey);
+            watchKeyToPath.put(watchKey, directoryPath);
+            WatchBudget.recordActivity(directoryPath);
+        } catch (IOException e) {
+            return;
+        }
+        
+        progress.directoryRegistered();
+        
+        // scan the Files, then recursively register the sub-directories
+        File[] children = directory.listFiles();
+        if (children != null) {
+            ArrayList<File> subdirectories = new ArrayList();
+            for (File child : children) {
+                // skip excluded Files and subtrees before touching the file system
+                if (ScanFilter.isExcluded(child.toPath()))
+                    continue;
                 
-                // add the directory to the list of registered directories, update
-                // the user interface, and store the directory in the user's settings
-                // so that the directory will automatically be registered the next
-                // time the user starts the program
-                registeredDirectories.add(directory);
-                UserInterfaceManager.getSmartFolderFrame().getSmartFolderPanel().updateMonitoredDirectoriesTree(registeredDirectories);
-                SettingsManager.updateSmartFolders();
-
-                // recursive step
-                for (File child : directory.listFiles())
-                    if (child.isFile())
-                        ScanManager.pushFileForUpload(child, false);
-                    else if (child.isDirectory())
-                        registerDirectory(child);
-            } catch (IOException e) {}
+                if (child.isFile()) {
+                    pushRegisteredFile(child, child.lastModified(), initialScan);
+                    progress.fileDiscovered();
+                } else if (child.isDirectory()) {
+                    subdirectories.add(child);
+                    progress.directoryDiscovered();
+                }
+            }
+            
+            for (File subdirectory : subdirectories) {
+                if (progress.isCancelled())
+                    return;
+                registerSubtree(subdirectory, progress, initialScan);
+            }
         }
     }
     
+    /**
+     * Pushes a <code>File</code> that was found while registering a directory.
+     * 
+     * The <code>File</code>s of a SmartFolder that is being added are already
+     * there, so they are pushed to the <code>ScanManager</code> straight away.
+     * A directory that is registered because it appeared in a SmartFolder may
+     * still be being filled, so its new or changed <code>File</code>s are only
+     * scanned once they have settled (see <code>FileDebouncer</code>).
+     * 
+     * @param file the <code>File</code>
+     * @param lastModified the time (in milliseconds) the <code>File</code> was last modified
+     * @param initialScan whether the directory is being added as a SmartFolder
+     */
+    static void pushRegisteredFile(File file, long lastModified, boolean initialScan) {
+        if (initialScan)
+            ScanManager.pushFileForUpload(file, lastModified, ScanPriority.RESCAN, false);
+        else if (ScanManager.isFileOutOfDate(file, lastModified))
+            FileDebouncer.submit(file);
+    }
+    
     /**
      * Unregisters the specified directory from the <code>WatchService</code>.
      * 
@@ -129,86 +311,502 @@ public class DirectoryMonitor {
      * @param directory the directory to unregister
      */
     public static void unregisterDirectory(File directory) {
-        if ((pathToWatchKey.containsKey(directory.toPath()) && !pathToWatchKey.containsKey(directory.getParentFile().toPath())) || !directory.exists()) {
-            // stop watching this directory
-            WatchKey key = pathToWatchKey.get(directory.toPath());     
+        // update the user interface, and save the SmartFolders to the user's settings
+        if (detachDirectory(directory))
+            updateMonitoredDirectories();
+    }
+    
+    /**
+     * Unregisters the specified directory without updating the user interface.
+     * 
+     * @param directory the directory to unregister
+     * @return <code>true</code> if the directory was unregistered; <code>false</code>
+     * otherwise
+     * @see #unregisterDirectory(java.io.File)
+     */
+    private static boolean detachDirectory(File directory) {
+        Path directoryPath = directory.toPath();
+        Path parentPath = directoryPath.getParent();
+        
+        if (DirectoryPoller.isPolledRoot(directory)) {
+            DirectoryPoller.unregister(directory);
+            return true;
+        }
+        
+        if (!pathToWatchKey.containsKey(directoryPath))
+            return false;
+        
+        if ((parentPath == null || !pathToWatchKey.containsKey(parentPath)) || !directory.exists()) {
+            detachSubtree(directoryPath);
+            return true;
+        }
+        return false;
+    }
+    
+    /**
+     * Detaches the specified directory from its parent, then stops watching it
+     * and every directory beneath it.
+     * 
+     * @param directoryPath the <code>Path</code> to the directory
+     */
+    private static void detachSubtree(Path directoryPath) {
+        Path parentPath = directoryPath.getParent();
+        if (parentPath != null) {
+            Set<Path> siblings = registeredChildren.get(parentPath);
+            if (siblings != null)
+                siblings.remove(directoryPath);
+        }
+        unregisterSubtree(directoryPath);
+    }
+    
+    /**
+     * Stops watching the specified directory and all of its registered sub-directories.
+     * 
+     * @param directoryPath the <code>Path</code> to the directory
+     */
+    private static void unregisterSubtree(Path directoryPath) {
+        // stop watching this directory and remove references to it
+        WatchKey key = pathToWatchKey.remove(directoryPath);
+        if (key != null) {
             key.cancel();
-            
-            // remove references to the directory
-            pathToWatchKey.remove(directory.toPath());              
             watchKeyToPath.remove(key);
+        } else if (WatchBudget.isDemoted(directoryPath)) {
+            DirectoryPoller.unregister(directoryPath.toFile());
+        }
         
-            // recursively unregister the sub-directories of this directory
-            for (int i = registeredDirectories.size() - 1; i >= 0; i--)
-                if (registeredDirectories.get(i).getParent().equals(directory.getPath()))
-                    unregisterDirectory(registeredDirectories.get(i));
-            
-            // remove the directory from the list of watched directories, update
-            // the user interface, and save the SmartFolders to the user's settings
-            registeredDirectories.remove(directory);
-            UserInterfaceManager.getSmartFolderFrame().getSmartFolderPanel().updateMonitoredDirectoriesTree(registeredDirectories);
-            SettingsManager.updateSmartFolders();
+        lastRescanNanos.remove(directoryPath);
+        WatchBudget.forget(directoryPath);
+        
+        // recursively unregister the sub-directories of this directory
+        Set<Path> children = registeredChildren.remove(directoryPath);
+        if (children != null)
+            for (Path child : children)
+                unregisterSubtree(child);
+    }
+    
+    /**
+     * Gets the set of registered sub-directories of the specified directory,
+     * creating it if necessary.
+     * 
+     * @param directoryPath the <code>Path</code> to the directory
+     * @return the registered sub-directories of the directory
+     */
+    private static Set<Path> getRegisteredChildren(Path directoryPath) {
+        Set<Path> children = registeredChildren.get(directoryPath);
+        if (children == null) {
+            registeredChildren.putIfAbsent(directoryPath, ConcurrentHashMap.<Path>newKeySet());
+            children = registeredChildren.get(directoryPath);
+        }
+        return children;
+    }
+    
+    /**
+     * Stops watching a directory tree and polls it instead, to free its
+     * <code>WatchKey</code>s for another tree.
+     * 
+     * The directory stays indexed under its parent, so that it is unregistered
+     * along with the parent.
+     * 
+     * @param directoryPath the <code>Path</code> to the directory
+     * @return the number of <code>WatchKey</code>s that were freed
+     */
+    static int demoteSubtree(Path directoryPath) {
+        if (!pathToWatchKey.containsKey(directoryPath))
+            return 0;
+        
+        int watchKeys = pathToWatchKey.size();
+        unregisterSubtree(directoryPath);
+        int freed = watchKeys - pathToWatchKey.size();
+        
+        DirectoryPoller.register(directoryPath.toFile(), new RegistrationProgress(), false);
+        WatchBudget.recordDemotion(directoryPath);
+        return freed;
+    }
+    
+    /**
+     * Forgets a demoted directory tree that was deleted.
+     * 
+     * The tree is detached from its parent and is no longer polled, which gives
+     * its place back to the <code>WatchBudget</code>.
+     * 
+     * @param directoryPath the <code>Path</code> to the top of the demoted tree
+     */
+    static void dropDemotedSubtree(Path directoryPath) {
+        detachSubtree(directoryPath);
+    }
+    
+    /**
+     * Stops polling a demoted directory tree and watches it again.
+     * 
+     * @param directory the directory at the top of the demoted tree
+     */
+    static void promoteSubtree(File directory) {
+        DirectoryPoller.unregister(directory);
+        WatchBudget.forget(directory.toPath());
+        registerSubtree(directory, new RegistrationProgress(), false);
+    }
+    
+    /**
+     * Gets the number of <code>WatchKey</code>s currently in use.
+     * 
+     * @return the number of watched directories
+     */
+    static int getWatchKeyCount() {
+        return pathToWatchKey.size();
+    }
+    
+    /**
+     * Gets the <code>Path</code>s of the watched directories.
+     * 
+     * @return a live view of the watched directories
+     */
+    static Set<Path> getWatchedPaths() {
+        return pathToWatchKey.keySet();
+    }
+    
+    /**
+     * Checks if a directory is watched.
+     * 
+     * @param directoryPath the <code>Path</code> to the directory
+     * @return <code>true</code> if the directory has a <code>WatchKey</code>;
+     * <code>false</code> otherwise
+     */
+    static boolean isWatched(Path directoryPath) {
+        return pathToWatchKey.containsKey(directoryPath);
+    }
+    
+    /**
+     * Checks if a watched directory is the top of a SmartFolder.
+     * 
+     * @param directoryPath the <code>Path</code> to the directory
+     * @return <code>true</code> if the directory's parent is not watched;
+     * <code>false</code> otherwise
+     */
+    static boolean isTopLevel(Path directoryPath) {
+        Path parentPath = directoryPath.getParent();
+        return parentPath == null || !pathToWatchKey.containsKey(parentPath);
+    }
+    
+    /**
+     * Gets the sub-directories indexed under a directory, which are either
+     * watched or demoted.
+     * 
+     * @param directoryPath the <code>Path</code> to the directory
+     * @return the sub-directories of the directory
+     */
+    static Set<Path> getWatchedChildren(Path directoryPath) {
+        Set<Path> children = registeredChildren.get(directoryPath);
+        return children == null ? Collections.<Path>emptySet() : children;
+    }
+    
+    /**
+     * Gets the directories currently being monitored, whether they are watched
+     * by the <code>DirectoryMonitor</code> or polled by the <code>DirectoryPoller</code>.
+     * 
+     * @return a list of the registered directories
+     */
+    public static ArrayList<File> getRegisteredDirectories() {
+        ArrayList<File> registeredDirectories = DirectoryPoller.getPolledDirectories();
+        registeredDirectories.ensureCapacity(registeredDirectories.size() + pathToWatchKey.size());
+        for (Path directoryPath : pathToWatchKey.keySet())
+            registeredDirectories.add(directoryPath.toFile());
+        return registeredDirectories;
+    }
+    
+    /**
+     * Gets the SmartFolders, which are the registered directories whose parents
+     * are not registered.
+     * 
+     * @return a list of the top-level directories
+     */
+    public static ArrayList<File> getTopLevelDirectories() {
+        ArrayList<File> registeredDirectories = getRegisteredDirectories();
+        HashSet<File> registered = new HashSet(registeredDirectories);
+        
+        ArrayList<File> topLevelDirectories = new ArrayList();
+        for (File directory : registeredDirectories) {
+            File parent = directory.getParentFile();
+            if (parent == null || !registered.contains(parent))
+                topLevelDirectories.add(directory);
         }
+        return topLevelDirectories;
+    }
+    
+    /**
+     * Changes the <code>MonitoringStrategy</code> of a SmartFolder.
+     * 
+     * The SmartFolder is unregistered, the new strategy is stored in the user's
+     * settings, and the SmartFolder is registered again with the new strategy.
+     * <code>File</code>s that have not changed are not scanned again.
+     * 
+     * @param smartFolder the top-level directory
+     * @param strategy the new strategy
+     */
+    public static void setMonitoringStrategy(File smartFolder, MonitoringStrategy strategy) {
+        setMonitoringStrategy(smartFolder, strategy, new RegistrationProgress());
+    }
+    
+    /**
+     * Changes the <code>MonitoringStrategy</code> of a SmartFolder, reporting
+     * the progress of the new registration as it goes.
+     * 
+     * This walks the whole SmartFolder, so it should not be called from the
+     * event dispatch thread. If the registration is cancelled, the SmartFolder
+     * is left unregistered, just like a new directory whose registration was cancelled.
+     * 
+     * @param smartFolder the top-level directory
+     * @param strategy the new strategy
+     * @param progress the progress of the registration
+     * @see #setMonitoringStrategy(java.io.File, MonitoringStrategy)
+     */
+    public static void setMonitoringStrategy(File smartFolder, MonitoringStrategy strategy, RegistrationProgress progress) {
+        if (SettingsManager.getMonitoringStrategy(smartFolder) == strategy)
+            return;
+        
+        unregisterDirectory(smartFolder);
+        SettingsManager.setMonitoringStrategy(smartFolder, strategy);
+        registerDirectory(smartFolder, progress);
+    }
+    
+    /**
+     * Updates the user interface with the registered directories and saves the
+     * SmartFolders to the user's settings.
+     * 
+     * This is called from the <code>Thread</code> that changed the registered
+     * directories; the <code>JTree</code> is updated later on the event dispatch
+     * thread, and the settings are built from the registered directories rather
+     * than from the <code>JTree</code>.
+     */
+    static void updateMonitoredDirectories() {
+        UserInterfaceManager.getSmartFolderFrame().getSmartFolderPanel().updateMonitoredDirectoriesTree(getRegisteredDirectories());
+        SettingsManager.updateSmartFolders();
     }
     
     /**
      * Attempts to start the <code>DirectoryMonitor</code>.
      * 
-     * This will create a new <code>Thread</code> that will loop through and process 
-     * events that are detected within the monitored directories.
+     * This will create the <code>Thread</code> used to register new directories,
+     * and the <code>Thread</code> that schedules the rescans of directories whose
+     * events overflowed and the rebalances of the <code>WatchBudget</code>. Both
+     * of those are run by the <code>registrationExecutor</code>, so that every
+     * change to the registered directories happens on one <code>Thread</code>,
+     * in order. The <code>Thread</code>s
+     * that process events are started with the <code>WatchService</code> of each
+     * file system, the first time a directory on it is registered.
      */
-    private static void start() {
+    private static synchronized void start() {
         if (!running) {
-            try {
-                watchService = FileSystems.getDefault().newWatchService();
-            } catch (IOException e) {}
+            registrationExecutor = Executors.newSingleThreadExecutor();
+            rescanScheduler = Executors.newSingleThreadScheduledExecutor();
+            rescanScheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    registrationExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (WatchBudget.rebalance())
+                                updateMonitoredDirectories();
+                        }
+                    });
+                }
+            }, WatchBudget.REBALANCE_INTERVAL_MILLIS, WatchBudget.REBALANCE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
             running = true;
+        }
+    }
+    
+    /**
+     * Gets the <code>WatchService</code> for the volume that holds the
+     * specified directory, creating it (and the <code>Thread</code> that processes
+     * its events) if necessary.
+     * 
+     * @param directoryPath the <code>Path</code> to the directory
+     * @return the <code>WatchService</code>
+     * @throws IOException if the <code>WatchService</code> could not be created
+     */
+    private static WatchService getWatchService(Path directoryPath) throws IOException {
+        // the FileStore is looked up outside of the lock, as it can take a while;
+        // the root is only used if the FileStore cannot be found
+        Object volume;
+        try {
+            volume = Files.getFileStore(directoryPath);
+        } catch (IOException e) {
+            volume = directoryPath.toAbsolutePath().getRoot();
+        }
+        return getWatchService(directoryPath, volume);
+    }
+    
+    private static synchronized WatchService getWatchService(Path directoryPath, Object volume) throws IOException {
+        WatchService watchService = watchServices.get(volume);
+        if (watchService == null) {
+            watchService = directoryPath.getFileSystem().newWatchService();
+            watchServices.put(volume, watchService);
+            
+            final WatchService rootWatchService = watchService;
             Thread smartFolderMonitorThread = new Thread() {
                 @Override
                 public void run() {
                     while (true)     
-                        processNextKey();
+                        processNextKey(rootWatchService);
                 }
             };
             smartFolderMonitorThread.start();
         }
+        return watchService;
     }
     
     /**
      * Processes the next <code>WatchKey</code> based on the logic specified in the class header.
+     * 
+     * Registering and unregistering directories is handed to the
+     * <code>registrationExecutor</code>, so that events keep being processed
+     * while a new directory tree is registered.
+     * 
+     * @param watchService the <code>WatchService</code> to take the key from
      */
-    private static void processNextKey() {
+    private static void processNextKey(WatchService watchService) {
         WatchKey nextKey;
         try {            
             nextKey = watchService.take();  // wait for the next key to throw an event
+            WatchBudget.recordActivity(watchKeyToPath.get(nextKey));
             
             // iterate the events that occured on this key
             for (WatchEvent watchEvent : nextKey.pollEvents()) {
+                
+                // if events were lost, rescan the directory to find them
+                if (watchEvent.kind().equals(StandardWatchEventKinds.OVERFLOW)) {
+                    scheduleRescan(watchKeyToPath.get(nextKey));
+                    continue;
+                }
+                
                 WatchEvent<Path> ev = (WatchEvent<Path>) watchEvent;
                 
                 // get the file responsible for this event
                 Path fullPath       = watchKeyToPath.get(nextKey).resolve(ev.context());
-                File responsibleFile = fullPath.toFile();
+                final File responsibleFile = fullPath.toFile();
                 
                 // if a directory was deleted, remove references to the directory
                 if (!responsibleFile.exists()){
-                    if (registeredDirectories.contains(responsibleFile))
-                        unregisterDirectory(responsibleFile);
+                    if (pathToWatchKey.containsKey(fullPath)) {
+                        registrationExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                unregisterDirectory(responsibleFile);
+                            }
+                        });
+                    }
                 } 
                 
+                // ignore anything the user excluded
+                else if (ScanFilter.isExcluded(fullPath)) {
+                    continue;
+                }
+                
                 // if a new directory was created, watch the directory
                 else if (responsibleFile.isDirectory()) {
-                    if (ev.kind().equals(StandardWatchEventKinds.ENTRY_CREATE))
-                        registerDirectory(responsibleFile);
+                    if (ev.kind().equals(StandardWatchEventKinds.ENTRY_CREATE)) {
+                        registrationExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                registerDirectory(responsibleFile, new RegistrationProgress(), false);
+                            }
+                        });
+                    }
                 } 
                 
-                // if file was created or modified, scan the file
+                // if file was created or modified, scan the file once it has
+                // finished being written
                 else if (responsibleFile.isFile()) {
-                    ScanManager.pushFileForUpload(responsibleFile, false);
+                    FileDebouncer.submit(responsibleFile);
                 }
             }
             
             nextKey.reset();    // reset the key in order to process the next one
         } catch (InterruptedException | NullPointerException e) {}
-    }    
+    }
+    
+    /**
+     * Schedules a rescan of a directory whose events overflowed.
+     * 
+     * If a rescan of the directory is already waiting, nothing more is scheduled.
+     * Otherwise the rescan runs as soon as <code>RESCAN_INTERVAL_NANOS</code> have
+     * passed since the directory was last rescanned.
+     * 
+     * @param directoryPath the <code>Path</code> to the directory
+     */
+    private static void scheduleRescan(final Path directoryPath) {
+        if (directoryPath == null || !scheduledRescans.add(directoryPath))
+            return;
+        
+        Long lastRescan = lastRescanNanos.get(directoryPath);
+        long delay = lastRescan == null ? 0 : Math.max(0, lastRescan + RESCAN_INTERVAL_NANOS - System.nanoTime());
+        
+        // the rescan registers and unregisters directories, so it runs on the
+        // registrationExecutor once it is due
+        rescanScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                registrationExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        rescanDirectory(directoryPath);
+                    }
+                });
+            }
+        }, delay, TimeUnit.NANOSECONDS);
+    }
+    
+    /**
+     * Rescans a directory whose events were lost.
+     * 
+     * Every <code>File</code> in the directory is compared against the last
+     * modified times known to the <code>ScanManager</code>, and only new or
+     * changed <code>File</code>s are scanned. New sub-directories are registered
+     * and registered sub-directories that no longer exist are unregistered.
+     * The user interface is updated once, after the whole directory has been
+     * rescanned.
+     * 
+     * @param directoryPath the <code>Path</code> to the directory
+     */
+    private static void rescanDirectory(Path directoryPath) {
+        scheduledRescans.remove(directoryPath);
+        lastRescanNanos.put(directoryPath, System.nanoTime());
+        
+        if (!pathToWatchKey.containsKey(directoryPath))
+            return;
+        if (!Files.isDirectory(directoryPath)) {
+            unregisterDirectory(directoryPath.toFile());
+            return;
+        }
+        
+        boolean directoriesChanged = false;
+        
+        // forget the sub-directories that were deleted
+        Set<Path> children = registeredChildren.get(directoryPath);
+        if (children != null)
+            for (Path child : children)
+                if (!Files.isDirectory(child))
+                    directoriesChanged |= detachDirectory(child.toFile());
+        
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directoryPath)) {
+            for (Path entry : entries) {
+                if (ScanFilter.isExcluded(entry))
+                    continue;
+                
+                try {
+                    BasicFileAttributes attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+                    
+                    if (attributes.isDirectory()) {
+                        if (!pathToWatchKey.containsKey(entry))
+                            directoriesChanged |= attachDirectory(entry.toFile(), new RegistrationProgress(), false);
+                    } else if (attributes.isRegularFile()) {
+                        if (ScanManager.isFileOutOfDate(entry.toFile(), attributes.lastModifiedTime().toMillis()))
+                            FileDebouncer.submit(entry.toFile());
+                    }
+                } catch (IOException e) {}
+            }
+        } catch (IOException e) {}
+        
+        if (directoriesChanged)
+            updateMonitoredDirectories();
+    }
 }
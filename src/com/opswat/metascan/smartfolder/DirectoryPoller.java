@@ -0,0 +1,423 @@
+package com.opswat.metascan.smartfolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Statically monitors directories by periodically checking them for changes.
+ * 
+ * This is used for SmartFolders whose <code>MonitoringStrategy</code> is
+ * <code>POLL</code>, on file systems where the <code>WatchService</code> does not
+ * report changes or where watching every directory would be too expensive.<br><br>
+ * 
+ * The <code>DirectoryPoller</code> remembers the last modified time and the
+ * sub-directories of every directory it polls. Adding, removing or renaming an
+ * entry changes the last modified time of its directory, so each poll only
+ * reads the attributes of every directory and lists the ones that changed.
+ * Changing the contents of a <code>File</code> does not change its directory,
+ * so every few polls all of the directories are listed again. New or changed
+ * <code>File</code>s are scanned once they have settled (see <code>FileDebouncer</code>).<br><br>
+ * 
+ * Besides the SmartFolders the user chose to poll, the poller also takes over
+ * the subtrees that the <code>WatchBudget</code> could not afford to watch, and
+ * tells it which of those subtrees have been changing.<br><br>
+ * 
+ * Each polled tree is walked under a lock of its own, so registering, polling
+ * or unregistering one large tree never holds up the others.<br><br>
+ * 
+ * The poller can be tuned with the following system properties:<ul>
+ * <li><b>smartfolder.poll.intervalMillis: </b>   the time (in milliseconds) between two
+ *                                                polls (30 seconds by default)</li>
+ * <li><b>smartfolder.poll.fullRescanCycles: </b> the number of polls between two full
+ *                                                listings (10 by default)</li></ul>
+ * 
+ * @author Tristan Currens
+ * @see DirectoryMonitor
+ */
+public class DirectoryPoller {
+    
+    /**
+     * The amount of time (in milliseconds) between two polls.
+     */
+    private static final long POLL_INTERVAL_MILLIS = Math.max(1000, Long.getLong("smartfolder.poll.intervalMillis", 30000));
+    
+    /**
+     * The number of polls between two full listings of every directory.
+     */
+    private static final int FULL_RESCAN_CYCLES = Math.max(1, Integer.getInteger("smartfolder.poll.fullRescanCycles", 10));
+    
+    /**
+     * A mapping from the directory at the top of each polled tree to the state
+     * of that tree.
+     * 
+     * The listings of a tree are only changed while holding the lock of its
+     * <code>PolledTree</code>, but they can be read without it, so that checking
+     * whether a directory is polled never waits for a poll to finish.
+     */
+    private static final ConcurrentHashMap<Path, PolledTree> polledRoots = new ConcurrentHashMap();
+    
+    /**
+     * A mapping from each polled directory to what was found the last time it was listed.
+     */
+    private static final ConcurrentHashMap<Path, DirectoryListing> listings = new ConcurrentHashMap();
+    
+    /**
+     * Runs the polls.
+     */
+    private static ScheduledExecutorService pollScheduler;
+    
+    /**
+     * The number of polls that have run. This is only used by the poll <code>Thread</code>.
+     */
+    private static int cycles = 0;
+    
+    /**
+     * Starts polling the specified directory and all of its sub-directories.
+     * 
+     * This will list the whole tree and scan any <code>File</code>s that are
+     * encountered along the way. If the registration is cancelled part of the
+     * way through, only part of the tree is listed; the caller is expected to
+     * <code>unregister</code> it.
+     * 
+     * @param directory the directory to poll
+     * @param progress the progress of the registration
+     * @param initialScan whether the directory is being added as a SmartFolder,
+     * rather than registered because it appeared in one
+     * @see DirectoryMonitor#pushRegisteredFile(java.io.File, long, boolean)
+     */
+    public static void register(File directory, RegistrationProgress progress, boolean initialScan) {
+        start();
+        
+        Path directoryPath = directory.toPath();
+        PolledTree tree = new PolledTree();
+        tree.lock.lock();
+        try {
+            if (polledRoots.putIfAbsent(directoryPath, tree) == null && !listings.containsKey(directoryPath))
+                list(directoryPath, tree, progress, initialScan);
+        } finally {
+            tree.lock.unlock();
+        }
+    }
+    
+    /**
+     * Stops polling the specified directory and all of its sub-directories.
+     * 
+     * If the tree is being walked, this waits for the walk to finish.
+     * 
+     * @param directory a directory that was passed to <code>register</code>
+     */
+    public static void unregister(File directory) {
+        Path directoryPath = directory.toPath();
+        PolledTree tree = polledRoots.remove(directoryPath);
+        if (tree != null) {
+            tree.lock.lock();
+            try {
+                forget(directoryPath);
+            } finally {
+                tree.lock.unlock();
+            }
+        }
+    }
+    
+    /**
+     * Starts the <code>Thread</code> that polls the registered trees, if it is
+     * not already running.
+     */
+    private static synchronized void start() {
+        if (pollScheduler == null) {
+            pollScheduler = Executors.newSingleThreadScheduledExecutor();
+            pollScheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    poll();
+                }
+            }, POLL_INTERVAL_MILLIS, POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    /**
+     * Checks if the specified directory was passed to <code>register</code>.
+     * 
+     * @param directory the directory
+     * @return <code>true</code> if the directory is at the top of a polled tree;
+     * <code>false</code> otherwise
+     */
+    public static boolean isPolledRoot(File directory) {
+        return polledRoots.containsKey(directory.toPath());
+    }
+    
+    /**
+     * Checks if the specified directory is being polled.
+     * 
+     * @param directory the directory
+     * @return <code>true</code> if the directory is in a polled tree; <code>false</code>
+     * otherwise
+     */
+    public static boolean isPolled(File directory) {
+        return listings.containsKey(directory.toPath());
+    }
+    
+    /**
+     * Gets every directory that is currently being polled.
+     * 
+     * @return a list of the polled directories
+     */
+    public static ArrayList<File> getPolledDirectories() {
+        ArrayList<File> polledDirectories = new ArrayList(listings.size());
+        for (Path directoryPath : listings.keySet())
+            polledDirectories.add(directoryPath.toFile());
+        return polledDirectories;
+    }
+    
+    /**
+     * Counts the directories in a polled tree.
+     * 
+     * @param directory a directory that was passed to <code>register</code>
+     * @return the number of directories in the tree, including the directory itself
+     */
+    public static int countDirectories(File directory) {
+        return countDirectories(directory.toPath());
+    }
+    
+    private static int countDirectories(Path directoryPath) {
+        DirectoryListing listing = listings.get(directoryPath);
+        if (listing == null)
+            return 0;
+        
+        int count = 1;
+        for (Path subdirectory : listing.subdirectories)
+            count += countDirectories(subdirectory);
+        return count;
+    }
+    
+    /**
+     * Polls every registered tree for changes.
+     * 
+     * If directories were added or removed, the user interface is updated once
+     * the poll is finished. Every tree in which something changed is reported
+     * to the <code>WatchBudget</code>.
+     * 
+     * The trees are taken from a snapshot of the roots, and each one is walked
+     * under its own lock. A tree that is still being registered is skipped
+     * until the next poll.
+     */
+    private static void poll() {
+        boolean fullRescan = ++cycles % FULL_RESCAN_CYCLES == 0;
+        boolean directoriesChanged = false;
+        
+        for (Map.Entry<Path, PolledTree> entry : new ArrayList<Map.Entry<Path, PolledTree>>(polledRoots.entrySet())) {
+            Path root = entry.getKey();
+            PolledTree tree = entry.getValue();
+            if (!tree.lock.tryLock())
+                continue;
+            
+            try {
+                // the tree may have been unregistered since the snapshot
+                if (polledRoots.get(root) != tree)
+                    continue;
+                
+                // a demoted subtree that was deleted is dropped, rather than
+                // kept like the top of a SmartFolder
+                if (WatchBudget.isDemoted(root) && !Files.isDirectory(root)) {
+                    DirectoryMonitor.dropDemotedSubtree(root);
+                    directoriesChanged = true;
+                    continue;
+                }
+                
+                tree.changed = false;
+                tree.directoriesChanged = false;
+                pollDirectory(root, tree, fullRescan);
+                directoriesChanged |= tree.directoriesChanged;
+            } finally {
+                tree.lock.unlock();
+            }
+            
+            if (tree.changed)
+                WatchBudget.recordActivity(root);
+        }
+        
+        if (directoriesChanged)
+            DirectoryMonitor.updateMonitoredDirectories();
+    }
+    
+    /**
+     * Polls a directory and its sub-directories for changes.
+     * 
+     * @param directoryPath the <code>Path</code> to the directory
+     * @param tree the tree the directory belongs to
+     * @param fullRescan whether or not to list the directory even if it has not
+     * been modified
+     */
+    private static void pollDirectory(Path directoryPath, PolledTree tree, boolean fullRescan) {
+        DirectoryListing listing = listings.get(directoryPath);
+        if (listing == null)
+            return;
+        
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(directoryPath, BasicFileAttributes.class);
+        } catch (IOException e) {
+            attributes = null;
+        }
+        
+        // the directory was deleted; the top of a tree is kept, as it may only be
+        // unavailable for a while (such as a network share that is offline)
+        if (attributes == null || !attributes.isDirectory()) {
+            if (!polledRoots.containsKey(directoryPath))
+                forget(directoryPath);
+            return;
+        }
+        
+        if (fullRescan || attributes.lastModifiedTime().toMillis() != listing.lastModified)
+            listing = list(directoryPath, tree, null, false);
+        
+        for (Path subdirectory : listing.subdirectories)
+            pollDirectory(subdirectory, tree, fullRescan);
+    }
+    
+    /**
+     * Lists a directory, recording its last modified time and sub-directories.
+     * 
+     * New <code>File</code>s are scanned, new sub-directories are listed, and
+     * sub-directories that no longer exist are forgotten.
+     * 
+     * @param directoryPath the <code>Path</code> to the directory
+     * @param tree the tree the directory belongs to, whose lock must be held
+     * @param progress the progress of the registration, or <code>null</code> if
+     * the directory is being polled
+     * @param initialScan whether the directory is being added as a SmartFolder,
+     * in which case its <code>File</code>s are pushed to the <code>ScanManager</code>
+     * straight away instead of waiting for them to settle
+     * @return the new listing
+     */
+    private static DirectoryListing list(Path directoryPath, final PolledTree tree, final RegistrationProgress progress, final boolean initialScan) {
+        final HashSet<Path> subdirectories = new HashSet();
+        long lastModified = -1;
+        
+        try {
+            lastModified = Files.getLastModifiedTime(directoryPath).toMillis();
+            Files.walkFileTree(directoryPath, EnumSet.noneOf(FileVisitOption.class), 1, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path path, BasicFileAttributes attributes) {
+                    if (ScanFilter.isExcluded(path)) {
+                        // skip excluded Files and subtrees
+                    } else if (attributes.isDirectory()) {
+                        subdirectories.add(path);
+                    } else if (attributes.isRegularFile()) {
+                        long fileLastModified = attributes.lastModifiedTime().toMillis();
+                        if (progress != null) {
+                            DirectoryMonitor.pushRegisteredFile(path.toFile(), fileLastModified, initialScan);
+                            progress.fileDiscovered();
+                        } else if (ScanManager.isFileOutOfDate(path.toFile(), fileLastModified)) {
+                            FileDebouncer.submit(path.toFile());
+                            tree.changed = true;
+                        }
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+                
+                @Override
+                public FileVisitResult visitFileFailed(Path path, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {}
+        
+        DirectoryListing listing = new DirectoryListing(lastModified, subdirectories);
+        DirectoryListing previousListing = listings.put(directoryPath, listing);
+        
+        if (progress != null) {
+            progress.directoryRegistered();
+            for (int i = 0; i < subdirectories.size(); i++)
+                progress.directoryDiscovered();
+        }
+        
+        // forget the sub-directories that were removed
+        if (previousListing != null) {
+            for (Path subdirectory : previousListing.subdirectories) {
+                if (!subdirectories.contains(subdirectory)) {
+                    forget(subdirectory);
+                    tree.directoriesChanged = true;
+                    tree.changed = true;
+                }
+            }
+        }
+        
+        // list the sub-directories that were added
+        for (Path subdirectory : subdirectories) {
+            if (progress != null && progress.isCancelled())
+                break;
+            if (!listings.containsKey(subdirectory)) {
+                list(subdirectory, tree, progress, initialScan);
+                tree.directoriesChanged = true;
+                tree.changed = true;
+            }
+        }
+        
+        return listing;
+    }
+    
+    /**
+     * Forgets a directory and all of its sub-directories.
+     * 
+     * @param directoryPath the <code>Path</code> to the directory
+     */
+    private static void forget(Path directoryPath) {
+        DirectoryListing listing = listings.remove(directoryPath);
+        if (listing != null)
+            for (Path subdirectory : listing.subdirectories)
+                forget(subdirectory);
+    }
+    
+    /**
+     * The state of a polled tree.
+     */
+    private static class PolledTree {
+        
+        /**
+         * Held while the tree is being walked.
+         */
+        private final ReentrantLock lock = new ReentrantLock();
+        
+        /**
+         * Stores whether or not anything changed in the tree during the current poll.
+         */
+        private boolean changed = false;
+        
+        /**
+         * Stores whether or not the directory structure of the tree changed
+         * during the current poll.
+         */
+        private boolean directoriesChanged = false;
+    }
+    
+    /**
+     * What was found the last time a directory was listed.
+     */
+    private static class DirectoryListing {
+        
+        private final long lastModified;
+        private final Set<Path> subdirectories;
+        
+        DirectoryListing(long lastModified, Set<Path> subdirectories) {
+            this.lastModified = lastModified;
+            this.subdirectories = subdirectories;
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package com.opswat.metascan.smartfolder;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+/**
+ * Statically holds back changed <code>File</code>s until they have settled.
+ * 
+ * A <code>File</code> that is still being written raises a new event every time
+ * more of it is written. Rather than scanning the <code>File</code> after each
+ * event, the <code>FileDebouncer</code> folds every event for the same path into
+ * one, and only pushes the <code>File</code> to the <code>ScanManager</code> once
+ * no events have arrived for a quiet period and its size and last modified time
+ * have stayed the same for a whole quiet period.<br><br>
+ * 
+ * The debouncer can be tuned with the following system properties:<ul>
+ * <li><b>smartfolder.debounce.quietMillis: </b>   the quiet period (in milliseconds)
+ *                                                 (1 second by default)</li>
+ * <li><b>smartfolder.debounce.maxWaitMillis: </b> the longest time (in milliseconds) a
+ *                                                 <code>File</code> that never settles is held
+ *                                                 back before it is scanned anyway
+ *                                                 (5 minutes by default)</li></ul>
+ * 
+ * @author Tristan Currens
+ * @see DirectoryMonitor
+ */
+public class FileDebouncer {
+    
+    /**
+     * The amount of time (in milliseconds) that a <code>File</code> must go
+     * without changing before it is considered settled.
+     */
+    private static final long QUIET_PERIOD_MILLIS = Math.max(0, Long.getLong("smartfolder.debounce.quietMillis", 1000));
+    
+    /**
+     * The longest amount of time (in milliseconds) that a <code>File</code> will
+     * be held back, so that a <code>File</code> that is always changing (such as
+     * a log) is still scanned eventually.
+     */
+    private static final long MAX_WAIT_MILLIS = Math.max(QUIET_PERIOD_MILLIS, Long.getLong("smartfolder.debounce.maxWaitMillis", 300000));
+    
+    /**
+     * A mapping from path to the <code>File</code> at that path that is waiting to settle.
+     */
+    private static final ConcurrentHashMap<Path, SettlingFile> settlingFiles = new ConcurrentHashMap();
+    
+    /**
+     * The <code>File</code>s that are waiting to settle, ordered by the time at
+     * which they should next be checked.
+     */
+    private static final DelayQueue<SettlingFile> checkQueue = new DelayQueue();
+    
+    /**
+     * What <code>removeIfSettled</code> did: the entry was removed, and no
+     * event arrived since it was checked.
+     */
+    private static final int REMOVED = 0;
+    
+    /**
+     * The entry was removed, although an event arrived since it was checked.
+     */
+    private static final int REMOVED_WHILE_CHANGING = 1;
+    
+    /**
+     * The entry was kept, as an event arrived since it was checked.
+     */
+    private static final int STILL_CHANGING = 2;
+    
+    /**
+     * The entry is no longer in the map.
+     */
+    private static final int REPLACED = 3;
+    
+    private static boolean running = false;
+    
+    /**
+     * Submits a <code>File</code> that was created or modified.
+     * 
+     * If the <code>File</code> is already waiting to settle, the new event is
+     * folded into the one that is waiting. The event is folded while holding
+     * the entry in the map, so it can never be folded into an entry that is
+     * being removed (see <code>removeIfSettled</code>).
+     * 
+     * @param file the <code>File</code> that changed
+     */
+    public static void submit(final File file) {
+        if (!running)
+            start();
+        
+        final long now = System.nanoTime();
+        final SettlingFile[] created = new SettlingFile[1];
+        settlingFiles.compute(file.toPath(), new BiFunction<Path, SettlingFile, SettlingFile>() {
+            @Override
+            public SettlingFile apply(Path path, SettlingFile existing) {
+                if (existing != null) {
+                    existing.lastEventNanos = now;
+                    return existing;
+                }
+                created[0] = new SettlingFile(file, now);
+                return created[0];
+            }
+        });
+        
+        if (created[0] != null)
+            checkQueue.offer(created[0]);
+    }
+    
+    /**
+     * Starts the <code>FileDebouncer</code>.
+     * 
+     * This will create a new <code>Thread</code> that checks each <code>File</code>
+     * once its quiet period has passed.
+     */
+    private static synchronized void start() {
+        if (!running) {
+            running = true;
+            Thread fileDebouncerThread = new Thread() {
+                @Override
+                public void run() {
+                    while (running) {
+                        try {
+                            check(checkQueue.take());
+                        } catch (InterruptedException e) {}
+                    }
+                }
+            };
+            fileDebouncerThread.setDaemon(true);
+            fileDebouncerThread.start();
+        }
+    }
+    
+    /**
+     * Checks whether a <code>File</code> has settled.
+     * 
+     * A settled <code>File</code> is pushed to the <code>ScanManager</code>; any
+     * other <code>File</code> is checked again later. <code>File</code>s that were
+     * deleted while they were waiting are dropped.
+     * 
+     * @param settlingFile the <code>File</code> to check
+     */
+    private static void check(SettlingFile settlingFile) {
+        File file = settlingFile.file;
+        long now = System.nanoTime();
+        boolean waitedTooLong = now - settlingFile.firstEventNanos >= TimeUnit.MILLISECONDS.toNanos(MAX_WAIT_MILLIS);
+        
+        if (!file.isFile()) {
+            settlingFiles.remove(file.toPath(), settlingFile);
+            return;
+        }
+        
+        // wait for the events to stop
+        long lastEventNanos = settlingFile.lastEventNanos;
+        long quietUntilNanos = lastEventNanos + TimeUnit.MILLISECONDS.toNanos(QUIET_PERIOD_MILLIS);
+        if (quietUntilNanos > now && !waitedTooLong) {
+            settlingFile.dueNanos = quietUntilNanos;
+            checkQueue.offer(settlingFile);
+            return;
+        }
+        
+        // then wait for the size and last modified time to stop changing
+        long size = file.length();
+        long lastModified = file.lastModified();
+        if ((size != settlingFile.size || lastModified != settlingFile.lastModified) && !waitedTooLong) {
+            settlingFile.size = size;
+            settlingFile.lastModified = lastModified;
+            settlingFile.dueNanos = now + TimeUnit.MILLISECONDS.toNanos(QUIET_PERIOD_MILLIS);
+            checkQueue.offer(settlingFile);
+            return;
+        }
+        
+        // an event that arrived since the check wins: the File keeps settling,
+        // or, if it has already waited too long, is scanned now and settles again
+        int outcome = removeIfSettled(settlingFile, lastEventNanos, waitedTooLong);
+        if (outcome == STILL_CHANGING) {
+            settlingFile.dueNanos = now + TimeUnit.MILLISECONDS.toNanos(QUIET_PERIOD_MILLIS);
+            checkQueue.offer(settlingFile);
+        } else if (outcome != REPLACED) {
+            ScanManager.pushFileForUpload(file, lastModified, ScanPriority.NEW_FILE, false);
+            if (outcome == REMOVED_WHILE_CHANGING)
+                submit(file);
+        }
+    }
+    
+    /**
+     * Removes a settled <code>File</code> from the map, unless an event was
+     * folded into it since it was checked.
+     * 
+     * The check and the removal happen while holding the entry in the map, as
+     * <code>submit</code> does, so an event is either seen here or lands in a
+     * new entry.
+     * 
+     * @param settlingFile the <code>File</code> that settled
+     * @param checkedEventNanos the time of the last event seen by the check
+     * @param force whether to remove the entry even if an event arrived
+     * @return what happened to the entry
+     */
+    private static int removeIfSettled(final SettlingFile settlingFile, final long checkedEventNanos, final boolean force) {
+        final int[] outcome = { REPLACED };
+        settlingFiles.computeIfPresent(settlingFile.file.toPath(), new BiFunction<Path, SettlingFile, SettlingFile>() {
+            @Override
+            public SettlingFile apply(Path path, SettlingFile existing) {
+                if (existing != settlingFile)
+                    return existing;
+                
+                boolean changed = existing.lastEventNanos != checkedEventNanos;
+                if (changed && !force) {
+                    outcome[0] = STILL_CHANGING;
+                    return existing;
+                }
+                outcome[0] = changed ? REMOVED_WHILE_CHANGING : REMOVED;
+                return null;
+            }
+        });
+        return outcome[0];
+    }
+    
+    /**
+     * A <code>File</code> that is waiting to settle.
+     * 
+     * Its due time is only changed while it is out of the <code>checkQueue</code>,
+     * so that the order of the queue is never disturbed.
+     */
+    private static class SettlingFile implements Delayed {
+        
+        private final File file;
+        private final long firstEventNanos;
+        private volatile long lastEventNanos;
+        private long dueNanos;
+        private long size = -1;
+        private long lastModified = -1;
+        
+        SettlingFile(File file, long eventNanos) {
+            this.file = file;
+            this.firstEventNanos = eventNanos;
+            this.lastEventNanos = eventNanos;
+            this.dueNanos = eventNanos + TimeUnit.MILLISECONDS.toNanos(QUIET_PERIOD_MILLIS);
+        }
+        
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(dueNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+        
+        @Override
+        public int compareTo(Delayed other) {
+            long difference = getDelay(TimeUnit.NANOSECONDS) - other.getDelay(TimeUnit.NANOSECONDS);
+            return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+        }
+    }
+}
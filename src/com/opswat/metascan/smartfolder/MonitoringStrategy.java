@@ -0,0 +1,28 @@
+package com.opswat.metascan.smartfolder;
+
+/**
+ * The ways in which a SmartFolder can be monitored for changes.
+ * 
+ * @author Tristan Currens
+ * @see DirectoryMonitor
+ * @see DirectoryPoller
+ */
+public enum MonitoringStrategy {
+    
+    /**
+     * Watch every directory with the file system's <code>WatchService</code>.
+     * 
+     * Changes are detected as soon as they happen, but each directory uses a
+     * watch of its own, and some file systems (such as network shares) never
+     * report their changes.
+     */
+    WATCH,
+    
+    /**
+     * Periodically check the directories for changes with the <code>DirectoryPoller</code>.
+     * 
+     * Changes are detected later, but this works on every file system and does
+     * not use any watches.
+     */
+    POLL
+}
@@ -0,0 +1,87 @@
+package com.opswat.metascan.smartfolder;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tracks the progress of a directory tree that is being registered, and allows
+ * the registration to be cancelled.
+ * 
+ * The size of the tree is not known until it has been walked, so progress is
+ * measured as the fraction of the directories discovered so far that have been
+ * registered. This fraction only approaches 1 as the walk runs out of directories
+ * to visit.
+ * 
+ * @author Tristan Currens
+ * @see DirectoryMonitor#registerDirectory(java.io.File, RegistrationProgress)
+ */
+public class RegistrationProgress {
+    
+    private final AtomicInteger directoriesDiscovered = new AtomicInteger(1);  // the top of the tree
+    private final AtomicInteger directoriesRegistered = new AtomicInteger();
+    private final AtomicInteger filesDiscovered       = new AtomicInteger();
+    private final long startNanos = System.nanoTime();
+    private volatile boolean cancelled = false;
+    
+    /**
+     * Records that a sub-directory was found that still needs to be registered.
+     */
+    void directoryDiscovered() {
+        directoriesDiscovered.incrementAndGet();
+    }
+    
+    /**
+     * Records that a directory was registered.
+     */
+    void directoryRegistered() {
+        directoriesRegistered.incrementAndGet();
+    }
+    
+    /**
+     * Records that a <code>File</code> was found and pushed to the <code>ScanManager</code>.
+     */
+    void fileDiscovered() {
+        filesDiscovered.incrementAndGet();
+    }
+    
+    public int getDirectoriesRegistered() {
+        return directoriesRegistered.get();
+    }
+    
+    public int getFilesDiscovered() {
+        return filesDiscovered.get();
+    }
+    
+    /**
+     * Gets the fraction of the discovered directories that have been registered.
+     * 
+     * @return a value between 0 and 1
+     */
+    public double getFractionDone() {
+        return Math.min(1.0, directoriesRegistered.get() / (double) directoriesDiscovered.get());
+    }
+    
+    /**
+     * Gets the number of directories and <code>File</code>s found per second since
+     * the registration started.
+     * 
+     * @return the rate
+     */
+    public double getRate() {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        return seconds > 0 ? (directoriesRegistered.get() + filesDiscovered.get()) / seconds : 0;
+    }
+    
+    /**
+     * Cancels the registration.
+     * 
+     * The walk stops at the next directory, and whatever was registered so far
+     * is unregistered again.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+    
+    public boolean isCancelled() {
+        return cancelled;
+    }
+}
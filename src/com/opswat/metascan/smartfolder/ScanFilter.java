@@ -0,0 +1,277 @@
+package com.opswat.metascan.smartfolder;
+
+import java.io.File;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Statically decides which <code>File</code>s and directories in the SmartFolders
+ * are scanned.
+ * 
+ * The filter is made up of the following rules, which are stored in the user's
+ * settings:<ul>
+ * <li><b>Exclude patterns: </b>  <code>File</code>s and directories that match any
+ *                                of these are ignored; an excluded directory is
+ *                                never watched, polled or walked, so nothing beneath
+ *                                it costs anything</li>
+ * <li><b>Include patterns: </b>  if there are any, only <code>File</code>s that match
+ *                                one of them are scanned</li>
+ * <li><b>Extensions: </b>        if there are any allowed extensions, only
+ *                                <code>File</code>s with one of them are scanned;
+ *                                <code>File</code>s with a denied extension are never
+ *                                scanned</li>
+ * <li><b>Size limits: </b>       <code>File</code>s that are smaller than the minimum
+ *                                or larger than the maximum are not scanned</li></ul>
+ * 
+ * Patterns are separated by semicolons. Each pattern is either <code>glob:</code>
+ * or <code>regex:</code> followed by the pattern, in the syntax of
+ * <code>FileSystem.getPathMatcher</code>; a pattern without a prefix is a glob. A
+ * glob without a directory separator (such as <code>*.tmp</code> or <code>.git</code>)
+ * is matched against the name of the <code>File</code>, and any other pattern
+ * against its whole path.<br><br>
+ * 
+ * The patterns are compiled once, when the rules are set, and the verdict for
+ * most recently used paths is cached, so a path is usually only matched
+ * against the patterns once.
+ * Rules only apply to directories as they are registered, so changing them does
+ * not affect directories that are already monitored until they are registered
+ * again.
+ * 
+ * @author Tristan Currens
+ * @see com.opswat.metascan.smartfolder.settings.SettingsManager
+ */
+public class ScanFilter {
+    
+    /**
+     * The largest number of path verdicts that are cached; beyond this, the
+     * least recently used verdict is forgotten.
+     */
+    private static final int MAX_CACHED_VERDICTS = 65536;
+    
+    /**
+     * The rules currently in use.
+     * 
+     * The rules are replaced as a whole when they change, which also empties the
+     * cache of verdicts.
+     */
+    private static volatile Rules rules = new Rules("", "", "", "", 0, Long.MAX_VALUE);
+    
+    /**
+     * The verdict of the patterns and extensions for a path.
+     */
+    private enum Verdict {
+        
+        /**
+         * The path matches an exclude pattern.
+         */
+        EXCLUDED,
+        
+        /**
+         * The path is not excluded, but a <code>File</code> at the path would not
+         * be scanned because of its name.
+         */
+        REJECTED,
+        
+        /**
+         * A <code>File</code> at the path would be scanned if its size is within
+         * the limits.
+         */
+        ACCEPTED
+    }
+    
+    /**
+     * Compiles and starts using a new set of rules.
+     * 
+     * @param includePatterns the include patterns, separated by semicolons
+     * @param excludePatterns the exclude patterns, separated by semicolons
+     * @param allowedExtensions the allowed extensions, separated by commas
+     * @param deniedExtensions the denied extensions, separated by commas
+     * @param minSize the smallest size (in bytes) of a scanned <code>File</code>
+     * @param maxSize the largest size (in bytes) of a scanned <code>File</code>
+     * @throws IllegalArgumentException if a pattern is not valid
+     */
+    public static void setRules(String includePatterns, String excludePatterns, String allowedExtensions,
+            String deniedExtensions, long minSize, long maxSize) {
+        rules = new Rules(includePatterns, excludePatterns, allowedExtensions, deniedExtensions, minSize, maxSize);
+    }
+    
+    /**
+     * Checks if a <code>File</code> or directory matches an exclude pattern.
+     * 
+     * This does not touch the file system, so it can be used to prune a
+     * directory before anything else is done with it.
+     * 
+     * @param path the <code>Path</code> to check
+     * @return <code>true</code> if the path is excluded; <code>false</code> otherwise
+     */
+    public static boolean isExcluded(Path path) {
+        return rules.getVerdict(path) == Verdict.EXCLUDED;
+    }
+    
+    /**
+     * Checks if a <code>File</code> should be scanned.
+     * 
+     * The size of the <code>File</code> is only read if there are size limits.
+     * 
+     * @param file the <code>File</code> to check
+     * @return <code>true</code> if the <code>File</code> passes every rule;
+     * <code>false</code> otherwise
+     */
+    public static boolean accepts(File file) {
+        Rules currentRules = rules;
+        if (currentRules.getVerdict(file.toPath()) != Verdict.ACCEPTED)
+            return false;
+        if (!currentRules.hasSizeLimits())
+            return true;
+        
+        long size = file.length();
+        return size >= currentRules.minSize && size <= currentRules.maxSize;
+    }
+    
+    /**
+     * A compiled set of rules, along with the verdicts it has reached so far.
+     */
+    private static class Rules {
+        
+        private final ArrayList<Pattern> includePatterns;
+        private final ArrayList<Pattern> excludePatterns;
+        private final HashSet<String> allowedExtensions;
+        private final HashSet<String> deniedExtensions;
+        private final long minSize;
+        private final long maxSize;
+        private final LinkedHashMap<Path, Verdict> verdicts = new LinkedHashMap<Path, Verdict>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, Verdict> eldest) {
+                return size() > MAX_CACHED_VERDICTS;
+            }
+        };
+        
+        Rules(String includePatterns, String excludePatterns, String allowedExtensions,
+                String deniedExtensions, long minSize, long maxSize) {
+            this.includePatterns = compile(includePatterns);
+            this.excludePatterns = compile(excludePatterns);
+            this.allowedExtensions = parseExtensions(allowedExtensions);
+            this.deniedExtensions = parseExtensions(deniedExtensions);
+            this.minSize = Math.max(0, minSize);
+            this.maxSize = maxSize > 0 ? maxSize : Long.MAX_VALUE;
+        }
+        
+        boolean hasSizeLimits() {
+            return minSize > 0 || maxSize < Long.MAX_VALUE;
+        }
+        
+        /**
+         * Gets the verdict for a path, matching it against the patterns only if it
+         * has not been seen before.
+         */
+        Verdict getVerdict(Path path) {
+            // without any patterns or extensions there is nothing worth caching
+            if (includePatterns.isEmpty() && excludePatterns.isEmpty() &&
+                    allowedExtensions.isEmpty() && deniedExtensions.isEmpty())
+                return Verdict.ACCEPTED;
+            
+            Verdict verdict;
+            synchronized (verdicts) {
+                verdict = verdicts.get(path);
+            }
+            
+            // the patterns are matched outside the lock, so two Threads may both
+            // evaluate a new path; they reach the same verdict
+            if (verdict == null) {
+                verdict = evaluate(path);
+                synchronized (verdicts) {
+                    verdicts.put(path, verdict);
+                }
+            }
+            return verdict;
+        }
+        
+        private Verdict evaluate(Path path) {
+            for (Pattern pattern : excludePatterns)
+                if (pattern.matches(path))
+                    return Verdict.EXCLUDED;
+            
+            if (!includePatterns.isEmpty()) {
+                boolean included = false;
+                for (Pattern pattern : includePatterns) {
+                    if (pattern.matches(path)) {
+                        included = true;
+                        break;
+                    }
+                }
+                if (!included)
+                    return Verdict.REJECTED;
+            }
+            
+            if (!allowedExtensions.isEmpty() || !deniedExtensions.isEmpty()) {
+                String extension = getExtension(path);
+                if (deniedExtensions.contains(extension))
+                    return Verdict.REJECTED;
+                if (!allowedExtensions.isEmpty() && !allowedExtensions.contains(extension))
+                    return Verdict.REJECTED;
+            }
+            
+            return Verdict.ACCEPTED;
+        }
+        
+        private static ArrayList<Pattern> compile(String patterns) {
+            ArrayList<Pattern> compiled = new ArrayList();
+            for (String pattern : patterns.split(";")) {
+                pattern = pattern.trim();
+                if (!pattern.isEmpty())
+                    compiled.add(new Pattern(pattern));
+            }
+            return compiled;
+        }
+        
+        private static HashSet<String> parseExtensions(String extensions) {
+            HashSet<String> parsed = new HashSet();
+            for (String extension : extensions.split(",")) {
+                extension = extension.trim().toLowerCase(Locale.ROOT);
+                if (extension.startsWith("."))
+                    extension = extension.substring(1);
+                if (!extension.isEmpty())
+                    parsed.add(extension);
+            }
+            return parsed;
+        }
+        
+        private static String getExtension(Path path) {
+            Path fileName = path.getFileName();
+            String name = fileName == null ? "" : fileName.toString();
+            int dot = name.lastIndexOf('.');
+            return dot < 0 ? "" : name.substring(dot + 1).toLowerCase(Locale.ROOT);
+        }
+    }
+    
+    /**
+     * A single compiled include or exclude pattern.
+     */
+    private static class Pattern {
+        
+        private final PathMatcher matcher;
+        private final boolean matchesName;
+        
+        Pattern(String pattern) {
+            if (!pattern.startsWith("glob:") && !pattern.startsWith("regex:"))
+                pattern = "glob:" + pattern;
+            
+            matcher = FileSystems.getDefault().getPathMatcher(pattern);
+            matchesName = pattern.startsWith("glob:") && pattern.indexOf('/') < 0 && pattern.indexOf('\\') < 0;
+        }
+        
+        boolean matches(Path path) {
+            if (matchesName) {
+                Path fileName = path.getFileName();
+                return fileName != null && matcher.matches(fileName);
+            }
+            return matcher.matches(path);
+        }
+    }
+}
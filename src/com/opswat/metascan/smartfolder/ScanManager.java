@@ -1,21 +1,39 @@
 package com.opswat.metascan.smartfolder;
 
+import com.opswat.metascan.smartfolder.cache.FileStateIndex;
+import com.opswat.metascan.smartfolder.cache.ScanResultCache;
 import com.opswat.metascan.smartfolder.settings.SettingsManager;
 import com.opswat.metascan.smartfolder.ui.UserInterfaceManager;
 import com.opswat.metascan.web.SessionDownloader;
 import com.opswat.metascan.web.SessionUploader;
 import java.io.File;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Comparator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
 /**
  * Statically manages all upload and download sessions for the program.
  * 
  * The <code>ScanManager</code> processes all incoming requests to scan files and
- * directories, as well as synchronizing the process flow from upload, to download,
- * and to finalization.
- *
+ * directories and hands them to the <code>ScanPipeline</code>, which carries each
+ * session from upload, to download, and to finalization.
+ * 
+ * None of its methods hold a lock while they work, so <code>File</code>s can be
+ * pushed from any number of <code>Thread</code>s while the <code>SessionUploader</code>
+ * is taking sessions from the queue. The number of sessions in the local
+ * stages of the <code>ScanPipeline</code> (hashing and deduplication) is bounded;
+ * sessions that do not fit are parked in the order of their ranks until room
+ * is given back, so the <code>Thread</code> that pushes a <code>File</code>
+ * never waits, least of all on the Metascan Online server.
+ * 
  * @author Tristan Currens
+ * @see ScanPipeline
  * @see SessionUploader
  * @see SessionDownloader
  */
@@ -24,141 +42,345 @@ public class ScanManager {
     /**
      * A map containing the last modified times of the specified <code>File</code>.
      * This map ensures that a <code>File</code> will only be scanned one time unless
-     * it is changed.
+     * it is changed. <code>File</code>s that are not in this map yet are checked
+     * against the <code>FileStateIndex</code>, which remembers them across restarts.
      */
-    private static HashMap<File, Long> fileLastModified = new HashMap();
+    private static final ConcurrentHashMap<File, Long> fileLastModified = new ConcurrentHashMap();
     
     /**
-     * A list of <code>ScanSession</code>s to upload to the Metascan Online server.
+     * The maximum number of <code>ScanSession</code>s that may be in the local
+     * stages of the <code>ScanPipeline</code> at once.
+     * 
+     * Sessions count from the time they are submitted until they have been
+     * hashed and deduplicated. This can be changed with the
+     * <code>smartfolder.pipeline.capacity</code> system property.
+     * <code>INTERACTIVE</code> sessions are not counted, so they are never parked.
      */
-    private static LinkedList<ScanSession> sessionsToUpload = new LinkedList();
+    private static final int PIPELINE_CAPACITY = Math.max(1, Integer.getInteger("smartfolder.pipeline.capacity", 10000));
     
     /**
-     * A list of <code>ScanSession</code>s to download from the Metascan Online server.
+     * A queue of <code>ScanSession</code>s to upload to the Metascan Online server,
+     * ordered by their ranks.
+     * 
+     * The queue itself is unbounded, so that a session is never kept out of it
+     * while a session with a lower class takes its place, and so that handing
+     * a session to it never waits.
+     * 
+     * @see ScanPriority
      */
-    private static LinkedList<ScanSession> sessionsToDownload = new LinkedList();
+    private static final BlockingQueue<ScanSession> sessionsToUpload = new PriorityBlockingQueue(11, new Comparator<ScanSession>() {
+        @Override
+        public int compare(ScanSession first, ScanSession second) {
+            return Long.compare(first.getRank(), second.getRank());
+        }
+    });
+    
+    /**
+     * The room left in the local stages of the <code>ScanPipeline</code> for
+     * sessions that are not <code>INTERACTIVE</code>. It is only ever taken with
+     * <code>tryAcquire</code>, so no <code>Thread</code> waits on it.
+     */
+    private static final Semaphore pipelineRoom = new Semaphore(PIPELINE_CAPACITY);
+    
+    /**
+     * The <code>ScanSession</code>s waiting for room in the local stages of the
+     * <code>ScanPipeline</code>, ordered by their ranks.
+     */
+    private static final BlockingQueue<ScanSession> parkedSessions = new PriorityBlockingQueue(11, new Comparator<ScanSession>() {
+        @Override
+        public int compare(ScanSession first, ScanSession second) {
+            return Long.compare(first.getRank(), second.getRank());
+        }
+    });
     
     /**
      * Stores whether or not the <code>ScanManager</code> has been initialized.
      */
-    private static boolean initialized = false;
+    private static volatile boolean initialized = false;
     
     /**
      * Pushes a <code>File</code> to be uploaded to the Metascan Online server.
      * 
      * @param file the <code>File</code> to upload 
+     * @param priority the class of work the scan belongs to
      * @param bypassFOD whether or not to force a rescan on this file by bypassing
      * the fileOutOfDate check
      */
-    public static synchronized void pushFileForUpload(File file, boolean bypassFOD) {
+    public static void pushFileForUpload(File file, ScanPriority priority, boolean bypassFOD) {
         ScanSession session = new ScanSession(file);
+        session.setPriority(priority);
         pushSessionForUpload(session, bypassFOD, true);
     }
     
+    /**
+     * Pushes a <code>File</code> whose last modified time is already known to
+     * be uploaded to the Metascan Online server.
+     * 
+     * This is how the monitored SmartFolders push their <code>File</code>s, so
+     * <code>File</code>s that do not pass the <code>ScanFilter</code> are ignored.
+     * 
+     * @param file the <code>File</code> to upload 
+     * @param lastModified the time (in milliseconds) the <code>File</code> was last modified
+     * @param priority the class of work the scan belongs to
+     * @param bypassFOD whether or not to force a rescan on this file by bypassing
+     * the fileOutOfDate check
+     */
+    public static void pushFileForUpload(File file, long lastModified, ScanPriority priority, boolean bypassFOD) {
+        if (!ScanFilter.accepts(file))
+            return;
+        
+        ScanSession session = new ScanSession(file);
+        session.setPriority(priority);
+        pushSessionForUpload(session, lastModified, bypassFOD, true);
+    }
+    
     /**
      * Pushes a directory to be uploaded to the Metascan Online server.
      * 
-     * This will recursively upload all of the files inside this directory and
-     * its sub-directories through a series of calls to <code>pushFileForUpload</code>
-     * and <code>pushDirectoryForUpload</code>.
+     * The directory and its sub-directories are walked in the background by the
+     * <code>DirectoryEnumerator</code>, and each <code>File</code> is pushed
+     * through <code>pushFileForUpload</code> as soon as it is found. This method
+     * returns without waiting for the walk to finish.
      * 
      * @param directory the directory the upload
+     * @param priority the class of work the scans belong to
      * @param bypassFOD whether or not to force a rescan on this file by bypassing
      * the fileOutOfDate check
      */
-    public static synchronized void pushDirectoryForUpload(File directory, boolean bypassFOD) {
-        if (directory != null && directory.isDirectory() && directory.listFiles() != null) {
-            for (File child : directory.listFiles()) {
-                if (child.isFile())
-                    pushFileForUpload(child, bypassFOD);
-                if (child.isDirectory())
-                    pushDirectoryForUpload(child, bypassFOD);
-            }
+    public static void pushDirectoryForUpload(File directory, final ScanPriority priority, final boolean bypassFOD) {
+        if (directory != null && directory.isDirectory()) {
+            DirectoryEnumerator.enumerate(directory, new DirectoryEnumerator.FileHandler() {
+                @Override
+                public void handleFile(File file, BasicFileAttributes attributes) {
+                    pushFileForUpload(file, attributes.lastModifiedTime().toMillis(), priority, bypassFOD);
+                }
+            });
         }
     }
     
     /**
      * Pushes a session to be uploaded to the Metascan Online server.
      * 
-     * Because this method takes a <code>ScanSession</code> as a parameter, direct calls
-     * will only be used for re-uploading sessions that could not previously be uploaded.
-     * This case occurs when the user specifies an invalid API key, an API key that
-     * has exceeded its limit, or if no Internet connection is present.
+     * Sessions whose <code>File</code>s are out of date are handed to the
+     * <code>ScanPipeline</code>, which hashes, uploads and finalizes them in the
+     * background, so this method returns without waiting for any of that work.
+     * If the local stages of the <code>ScanPipeline</code> are full, the session
+     * is parked until there is room for it.
      * 
      * @param session the <code>ScanSession</code> to be uploaded
      * @param bypassFOD whether or not to force a rescan on this file by bypassing
+     * the fileOutOfDate check
      * @param putInTable whether or not this session should be added to the display table
+     */
+    public static void pushSessionForUpload(ScanSession session, boolean bypassFOD, boolean putInTable) {
+        pushSessionForUpload(session, session.getFile().lastModified(), bypassFOD, putInTable);
+    }
+    
+    /**
+     * Pushes a session whose <code>File</code>'s last modified time is already
+     * known to be uploaded to the Metascan Online server.
      * 
+     * @param session the <code>ScanSession</code> to be uploaded
+     * @param lastModified the time (in milliseconds) the <code>File</code> was last modified
+     * @param bypassFOD whether or not to force a rescan on this file by bypassing
      * the fileOutOfDate check
+     * @param putInTable whether or not this session should be added to the display table
      */
-    public static synchronized void pushSessionForUpload(ScanSession session, boolean bypassFOD, boolean putInTable) {
+    public static void pushSessionForUpload(final ScanSession session, long lastModified, boolean bypassFOD, boolean putInTable) {
         if (!initialized)
             init();
         
+        // record the new time and check the old one in a single step, so that a
+        // File pushed from two Threads at once is only scanned one time
+        Long previousLastModified = fileLastModified.put(session.getFile(), lastModified);
+        
         boolean fileOutOfDate = 
-                !fileLastModified.containsKey(session.getFile()) || 
-                fileLastModified.get(session.getFile()) > session.getFile().lastModified() ||
+                (previousLastModified == null && !FileStateIndex.isUnchanged(session.getFile(), lastModified)) || 
+                (previousLastModified != null && previousLastModified != lastModified) ||
                 bypassFOD;
         
         if (fileOutOfDate) {
-            fileLastModified.put(session.getFile(), session.getFile().lastModified());
-            sessionsToUpload.offer(session);
+            session.setLastModified(lastModified);
+            
             if (putInTable)
                 UserInterfaceManager.getSmartFolderFrame().getConfigurationPanel().pushSessionToLog(session);
+            
+            // rank the session now, so that it keeps its place while it is parked
+            session.rank();
+            if (session.getPriority() == ScanPriority.INTERACTIVE || pipelineRoom.tryAcquire()) {
+                submit(session);
+            } else {
+                parkedSessions.offer(session);
+                
+                // room may have been given back since tryAcquire failed
+                admitParkedSessions();
+            }
+        }
+    
+    }
+    
+    /**
+     * Hands a <code>ScanSession</code> that has room in the local stages to the
+     * <code>ScanPipeline</code>.
+     * 
+     * @param session the <code>ScanSession</code> to submit
+     */
+    private static void submit(final ScanSession session) {
+        ScanPipeline.submit(session, new Runnable() {
+            @Override
+            public void run() {
+                leaveLocalStages(session);
+            }
+        }).whenComplete(new BiConsumer<ScanResult, Throwable>() {
+            @Override
+            public void accept(ScanResult result, Throwable failure) {
+                if (failure != null)
+                    failSession(session);
+            }
+        });
+    }
+    
+    /**
+     * Gives back the room taken by a session that has been hashed and
+     * deduplicated, and lets the next parked sessions in.
+     * 
+     * @param session the <code>ScanSession</code> that left the local stages
+     */
+    private static void leaveLocalStages(ScanSession session) {
+        if (session.getPriority() != ScanPriority.INTERACTIVE) {
+            pipelineRoom.release();
+            admitParkedSessions();
         }
+    }
+    
+    /**
+     * Submits parked sessions, highest ranked first, for as long as there is
+     * room in the local stages.
+     */
+    private static void admitParkedSessions() {
+        while (!parkedSessions.isEmpty() && pipelineRoom.tryAcquire()) {
+            ScanSession session = parkedSessions.poll();
+            if (session == null) {
+                // another Thread took the last one; check again, in case a
+                // session was parked before the room was given back
+                pipelineRoom.release();
+                continue;
+            }
+            submit(session);
+        }
+    }
+    
+    /**
+     * Marks a <code>ScanSession</code> that could not be scanned as failed.
+     * 
+     * The last modified time of its <code>File</code> is forgotten, so that the
+     * <code>File</code> is scanned again the next time it is pushed. This is
+     * usually the case when the <code>File</code> was deleted or could not be
+     * read before it was hashed.
+     * 
+     * @param session the <code>ScanSession</code> that failed
+     */
+    private static void failSession(ScanSession session) {
+        fileLastModified.remove(session.getFile(), session.getLastModified());
         
+        UserInterfaceManager.getSmartFolderFrame().getConfigurationPanel().updateSessionStatus(session, "Failed");
+        UserInterfaceManager.getSmartFolderFrame().getConfigurationPanel().updateSessionAction(session, "");
+    }
+    
+    /**
+     * Checks if a <code>File</code> is new or has changed since it was last pushed.
+     * 
+     * @param file the <code>File</code> to check
+     * @param lastModified the time (in milliseconds) the <code>File</code> was last modified
+     * @return <code>true</code> if the <code>File</code> has not been pushed with
+     * the same last modified time; <code>false</code> otherwise
+     */
+    public static boolean isFileOutOfDate(File file, long lastModified) {
+        Long knownLastModified = fileLastModified.get(file);
+        if (knownLastModified == null)
+            return !FileStateIndex.isUnchanged(file, lastModified);
+        return knownLastModified != lastModified;
+    }
+    
+    /**
+     * Queues a <code>ScanSession</code> to have its <code>File</code> taken by
+     * the <code>SessionUploader</code>.
+     * 
+     * This is the upload stage of the <code>ScanPipeline</code>, and it never
+     * waits: the session goes straight into the queue in the order of its rank.
+     * The room in the queue is accounted for when the session is pushed.
+     * 
+     * @param session the <code>ScanSession</code> to be uploaded
+     */
+    public static void enqueueForUpload(ScanSession session) {
+        if (!initialized)
+            init();
+        
+        sessionsToUpload.offer(session);
     }
     
     /**
      * Pushes a <code>ScanSession</code> to have its results downloaded from the
      * Metascan Online server.
      * 
+     * The <code>SessionDownloader</code> will keep polling the session until its
+     * results are complete.
+     * 
      * @param session the <code>ScanSession</code> for which to download results
+     * @return a future that is completed with the session once its results are complete
      */
-    public static synchronized void pushSessionForDownload(ScanSession session) {
-        if (session.getDataID() != null)
-            sessionsToDownload.offer(session);
+    public static CompletableFuture<ScanSession> pushSessionForDownload(ScanSession session) {
+        if (!initialized)
+            init();
+        
+        if (session.getDataID() == null) {
+            CompletableFuture<ScanSession> failure = new CompletableFuture();
+            failure.completeExceptionally(new IllegalStateException("No data ID for " + session.getFile()));
+            return failure;
+        }
+        
         UserInterfaceManager.getSmartFolderFrame().getConfigurationPanel().updateSessionStatus(session, "Scanning");
+        return SessionDownloader.schedule(session);
     }
     
     /**
      * Gets the next <code>ScanSession</code> to have its <code>File</code> uploaded
-     * to the Metascan Online server.
+     * to the Metascan Online server, waiting for one to become available if necessary.
      * 
-     * @return the next <code>ScanSession</code> that is awaiting upload or <code>null</code>
-     * if there are no more <code>ScanSession</code>s.
-     */
-    public static synchronized ScanSession getNextSessionForUpload() {
-        if (!sessionsToUpload.isEmpty() && SettingsManager.hasApiKey())
-            return sessionsToUpload.pollFirst();
-        else if (!SettingsManager.hasApiKey())
-            UserInterfaceManager.notifyInvalidAPIKey();
-        return null;
-    }
-    
-    /**
-     * Gets the next <code>ScanSession</code> to have its results downloaded from
-     * the Metascan Online server.
+     * Sessions are taken in the order of their ranks rather than the order in
+     * which they were queued.
      * 
-     * @return the next <code>ScanSession</code> that is awaiting download or <code>null</code>
-     * if there are no more <code>ScanSession</code>s.
+     * @param timeoutMillis the maximum amount of time (in milliseconds) to wait
+     * @return the next <code>ScanSession</code> that is awaiting upload or <code>null</code>
+     * if none became available in time.
+     * @throws InterruptedException if the calling <code>Thread</code> is interrupted
+     * while waiting
      */
-    public static synchronized ScanSession getNextSessionForDownload() {
-        if (!sessionsToDownload.isEmpty() && SettingsManager.hasApiKey())
-            return sessionsToDownload.pollFirst();
-        else if (!SettingsManager.hasApiKey())
+    public static ScanSession getNextSessionForUpload(long timeoutMillis) throws InterruptedException {
+        if (!SettingsManager.hasApiKey()) {
             UserInterfaceManager.notifyInvalidAPIKey();
-        return null;
+            Thread.sleep(timeoutMillis);
+            return null;
+        }
+        
+        return sessionsToUpload.poll(timeoutMillis, TimeUnit.MILLISECONDS);
     }
     
     /**
      * Finalizes the specified <code>ScanSession</code>.
      * 
      * This will alert the user of a suspicious file if the results are not clean.
+     * The results are also recorded in the <code>ScanResultCache</code> so that
+     * identical <code>File</code>s will not need to be uploaded again, and in the
+     * <code>FileStateIndex</code> so that the <code>File</code> will not be
+     * scanned again after a restart unless it changes.
      * 
      * @param scanSession the <code>ScanSession</code> to finalize
      */
-    public static synchronized void finalizeSession(ScanSession scanSession) {
+    public static void finalizeSession(ScanSession scanSession) {
+        ScanResultCache.store(scanSession);
+        FileStateIndex.record(scanSession);
+        
         if (!scanSession.getScanResult().isClean()) {
             UserInterfaceManager.getSmartFolderFrame().getConfigurationPanel().updateSessionStatus(scanSession, "Infected");
             UserInterfaceManager.getSmartFolderFrame().getConfigurationPanel().updateSessionAction(scanSession, "");
@@ -174,13 +396,26 @@ public class ScanManager {
      * Initializes the <code>ScanManager</code>. This will start the <code>SessionUploader</code>
      * and the <code>SessionDownloader</code>.
      * 
+     * The <code>SessionUploader</code> will be stopped when the program exits,
+     * allowing uploads that are in progress to finish.
+     * 
      * @see SessionDownloader
      * @see SessionUploader
      */
-    private static void init() {
+    private static synchronized void init() {
+        if (initialized)
+            return;
+        
         SessionUploader.start();
         SessionDownloader.start();
         
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                SessionUploader.stop();
+            }
+        });
+        
         initialized = true;
     }
 }
@@ -0,0 +1,243 @@
+package com.opswat.metascan.smartfolder;
+
+import com.opswat.metascan.smartfolder.cache.ScanResultCache;
+import com.opswat.metascan.web.SessionDownloader;
+import com.opswat.metascan.web.SessionUploader;
+import java.io.File;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Statically runs <code>ScanSession</code>s through the stages of a scan. <br><br>
+ * 
+ * Every <code>ScanSession</code> passes through the following stages:<ol>
+ * <li><b>Hash:     </b> Compute the SHA-256 digest of the <code>File</code></li>
+ * <li><b>Dedupe:   </b> Look the digest up in the <code>ScanResultCache</code></li>
+ * <li><b>Upload:   </b> Hand the session to the <code>SessionUploader</code>, which
+ *                       asks the server for the digest and uploads the <code>File</code>
+ *                       if it is unknown</li>
+ * <li><b>Poll:     </b> Hand the session to the <code>SessionDownloader</code>, which
+ *                       polls the server until the scan is complete</li>
+ * <li><b>Finalize: </b> Report the results through the <code>ScanManager</code></li></ol>
+ * 
+ * Sessions whose results are already known skip straight to finalization. The
+ * code that runs each stage is executed by that stage's <code>Executor</code>,
+ * which can be replaced with <code>setExecutor</code>.<br><br>
+ * 
+ * Each session is ranked by its <code>ScanPriority</code> as it enters the
+ * pipeline. The default hash <code>Executor</code> hashes the sessions in the
+ * order of their ranks, and the <code>ScanManager</code> hands them to the
+ * uploader in the same order. The upload stage never waits, so a session goes
+ * into the upload queue as soon as it has been hashed, and its rank decides
+ * when it is uploaded.
+ * 
+ * @author Tristan Currens
+ * @see ScanManager
+ * @see SessionUploader
+ * @see SessionDownloader
+ */
+public class ScanPipeline {
+    
+    /**
+     * The stages of a scan.
+     */
+    public enum Stage {
+        HASH,
+        DEDUPE,
+        UPLOAD,
+        POLL,
+        FINALIZE
+    }
+    
+    /**
+     * A mapping from each <code>Stage</code> to the <code>Executor</code> that runs it.
+     */
+    private static final EnumMap<Stage, Executor> executors = new EnumMap(Stage.class);
+    
+    /**
+     * Orders the tasks of the hash <code>Executor</code> by the rank of their sessions.
+     * 
+     * Tasks that do not belong to a ranked session (such as the dedupe stage of
+     * a session that has already been hashed) go first, as they are short and
+     * their sessions have already waited their turn.
+     */
+    private static final Comparator<Runnable> RANK_ORDER = new Comparator<Runnable>() {
+        @Override
+        public int compare(Runnable first, Runnable second) {
+            boolean firstRanked = first instanceof RankedTask;
+            boolean secondRanked = second instanceof RankedTask;
+            if (firstRanked && secondRanked)
+                return Long.compare(((RankedTask) first).session.getRank(), ((RankedTask) second).session.getRank());
+            return firstRanked ? (secondRanked ? 0 : 1) : (secondRanked ? -1 : 0);
+        }
+    };
+    
+    static {
+        // hashing reads whole Files, so it gets a Thread for each processor and
+        // takes the highest ranked session first; the hand-offs to the uploader
+        // and the finalization each get a single Thread
+        int processors = Runtime.getRuntime().availableProcessors();
+        Executor hashExecutor = new ThreadPoolExecutor(processors, processors, 0, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(11, RANK_ORDER));
+        Executor finalizeExecutor = Executors.newSingleThreadExecutor();
+        
+        executors.put(Stage.HASH, hashExecutor);
+        executors.put(Stage.DEDUPE, hashExecutor);
+        executors.put(Stage.UPLOAD, Executors.newSingleThreadExecutor());
+        executors.put(Stage.POLL, finalizeExecutor);
+        executors.put(Stage.FINALIZE, finalizeExecutor);
+    }
+    
+    /**
+     * Replaces the <code>Executor</code> used to run the specified <code>Stage</code>.
+     * 
+     * This only affects sessions that reach the <code>Stage</code> after the
+     * <code>Executor</code> has been replaced.
+     * 
+     * @param stage the <code>Stage</code>
+     * @param executor the new <code>Executor</code>
+     */
+    public static synchronized void setExecutor(Stage stage, Executor executor) {
+        executors.put(stage, executor);
+    }
+    
+    /**
+     * Gets the <code>Executor</code> used to run the specified <code>Stage</code>.
+     * 
+     * @param stage the <code>Stage</code>
+     * @return the <code>Executor</code>
+     */
+    public static synchronized Executor getExecutor(Stage stage) {
+        return executors.get(stage);
+    }
+    
+    /**
+     * Scans the specified <code>File</code>.
+     * 
+     * This always scans the <code>File</code>, even if it has not changed since
+     * it was last scanned.
+     * 
+     * @param file the <code>File</code> to scan
+     * @return the results of the scan, which will be completed once the results
+     * have been finalized
+     */
+    public static CompletableFuture<ScanResult> submit(File file) {
+        return submit(new ScanSession(file));
+    }
+    
+    /**
+     * Runs the specified <code>ScanSession</code> through every <code>Stage</code>
+     * of the scan.
+     * 
+     * @param session the <code>ScanSession</code> to scan
+     * @return the results of the scan, which will be completed once the results
+     * have been finalized
+     */
+    public static CompletableFuture<ScanResult> submit(ScanSession session) {
+        return submit(session, null);
+    }
+    
+    /**
+     * Runs the specified <code>ScanSession</code> through every <code>Stage</code>
+     * of the scan, telling the caller when it has left the local stages.
+     * 
+     * The local stages are the hash and dedupe stages, which only use this
+     * machine; every later stage waits on the Metascan Online server.
+     * 
+     * @param session the <code>ScanSession</code> to scan
+     * @param localStagesDone run once the session has been hashed and deduplicated,
+     * or has failed to be, or <code>null</code>
+     * @return the results of the scan, which will be completed once the results
+     * have been finalized
+     */
+    public static CompletableFuture<ScanResult> submit(final ScanSession session, final Runnable localStagesDone) {
+        session.rank();
+        
+        // the hash stage is submitted as a RankedTask, rather than through
+        // supplyAsync, so that the hash Executor can see the session's rank
+        final CompletableFuture<ScanSession> hashed = new CompletableFuture();
+        getExecutor(Stage.HASH).execute(new RankedTask(session) {
+            @Override
+            public void run() {
+                try {
+                    session.setDigest(ScanResultCache.computeDigest(session.getFile()));
+                    hashed.complete(session);
+                } catch (Throwable t) {
+                    hashed.completeExceptionally(t);
+                }
+            }
+        });
+        
+        CompletableFuture<ScanSession> deduped = hashed.thenApplyAsync(new Function<ScanSession, ScanSession>() {
+            @Override
+            public ScanSession apply(ScanSession session) {
+                ScanResult cachedResult = ScanResultCache.lookup(session);
+                if (cachedResult != null)
+                    session.setScanResult(cachedResult);
+                return session;
+            }
+        }, getExecutor(Stage.DEDUPE));
+        
+        if (localStagesDone != null) {
+            deduped.whenComplete(new BiConsumer<ScanSession, Throwable>() {
+                @Override
+                public void accept(ScanSession session, Throwable failure) {
+                    localStagesDone.run();
+                }
+            });
+        }
+        
+        return deduped
+                .thenComposeAsync(new Function<ScanSession, CompletionStage<ScanSession>>() {
+                    @Override
+                    public CompletionStage<ScanSession> apply(ScanSession session) {
+                        if (isComplete(session))
+                            return CompletableFuture.completedFuture(session);
+                        return SessionUploader.schedule(session);
+                    }
+                }, getExecutor(Stage.UPLOAD))
+                .thenComposeAsync(new Function<ScanSession, CompletionStage<ScanSession>>() {
+                    @Override
+                    public CompletionStage<ScanSession> apply(ScanSession session) {
+                        if (isComplete(session))
+                            return CompletableFuture.completedFuture(session);
+                        return ScanManager.pushSessionForDownload(session);
+                    }
+                }, getExecutor(Stage.POLL))
+                .thenApplyAsync(new Function<ScanSession, ScanResult>() {
+                    @Override
+                    public ScanResult apply(ScanSession session) {
+                        ScanManager.finalizeSession(session);
+                        return session.getScanResult();
+                    }
+                }, getExecutor(Stage.FINALIZE));
+    }
+    
+    /**
+     * Checks if the results of the specified <code>ScanSession</code> are already known.
+     */
+    private static boolean isComplete(ScanSession session) {
+        return session.getScanResult() != null && session.isComplete();
+    }
+    
+    /**
+     * A task that works on a ranked <code>ScanSession</code>.
+     */
+    private static abstract class RankedTask implements Runnable {
+        
+        private final ScanSession session;
+        
+        RankedTask(ScanSession session) {
+            this.session = session;
+        }
+    }
+}
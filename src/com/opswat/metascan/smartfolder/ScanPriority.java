@@ -0,0 +1,96 @@
+package com.opswat.metascan.smartfolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The classes of work that a <code>ScanSession</code> can belong to.
+ * 
+ * Sessions are served in the order of their rank, which is the time at which
+ * they entered the <code>ScanPipeline</code> minus a boost that depends on their
+ * class. A session of a higher class goes ahead of the sessions of lower classes
+ * that entered the pipeline less than its boost earlier, but no further, so the
+ * lower classes age towards the front of the queue and never starve.
+ * Executables and archives get an extra boost, as they are the most likely to
+ * be harmful.
+ * 
+ * @author Tristan Currens
+ * @see ScanPipeline
+ */
+public enum ScanPriority {
+    
+    /**
+     * A single <code>File</code> the user asked to scan, whose result is being
+     * waited on. These sessions do not count against the capacity of the
+     * <code>ScanPipeline</code>, so this class must not be used for whole directories.
+     */
+    INTERACTIVE(TimeUnit.DAYS.toMillis(1)),
+    
+    /**
+     * A <code>File</code> in a directory the user asked to scan.
+     */
+    USER_DIRECTORY(TimeUnit.MINUTES.toMillis(30)),
+    
+    /**
+     * A <code>File</code> that was just created or modified in a SmartFolder.
+     */
+    NEW_FILE(TimeUnit.MINUTES.toMillis(10)),
+    
+    /**
+     * A <code>File</code> on a device that is being scanned.
+     */
+    DEVICE_SCAN(TimeUnit.MINUTES.toMillis(2)),
+    
+    /**
+     * A <code>File</code> that is scanned as part of registering or rescanning a
+     * whole SmartFolder.
+     */
+    RESCAN(0);
+    
+    /**
+     * The extra boost (in milliseconds) given to executables and archives.
+     */
+    private static final long HIGH_RISK_BOOST_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    
+    /**
+     * The extensions of executables, scripts, macro-enabled documents and archives.
+     */
+    private static final HashSet<String> HIGH_RISK_EXTENSIONS = new HashSet(Arrays.asList(
+            "exe", "dll", "sys", "scr", "com", "cpl", "msi", "msp", "bat", "cmd", "ps1", "vbs", "vbe",
+            "js", "jse", "wsf", "hta", "lnk", "jar", "apk", "app", "dmg", "pkg", "deb", "rpm", "sh",
+            "docm", "xlsm", "pptm", "zip", "rar", "7z", "cab", "gz", "tgz", "tar", "bz2", "xz", "iso"));
+    
+    private final long boostMillis;
+    
+    private ScanPriority(long boostMillis) {
+        this.boostMillis = boostMillis;
+    }
+    
+    /**
+     * Gets the rank of a session of this class that enters the pipeline now.
+     * 
+     * @param file the <code>File</code> of the session
+     * @return the rank; sessions with lower ranks are served first
+     */
+    public long rank(File file) {
+        long boost = boostMillis;
+        if (isHighRisk(file))
+            boost += HIGH_RISK_BOOST_MILLIS;
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime()) - boost;
+    }
+    
+    /**
+     * Checks if a <code>File</code> is an executable or an archive, judging by its extension.
+     * 
+     * @param file the <code>File</code>
+     * @return <code>true</code> if the <code>File</code> is high risk; <code>false</code> otherwise
+     */
+    public static boolean isHighRisk(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return dot >= 0 && HIGH_RISK_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+}
@@ -1,7 +1,7 @@
 package com.opswat.metascan.smartfolder;
 
+import com.opswat.metascan.web.ScanResultDecoder;
 import org.json.simple.JSONObject;
-import org.json.simple.JSONValue;
 
 /**
  * The results of a the current <code>ScanSession</code>.
@@ -21,21 +21,67 @@ public class ScanResult {
     /**
      * Default constructor.
      * 
-     * This will parse the given JSON data that was obtained from the Metascan
+     * This will decode the given JSON data that was obtained from the Metascan
      * Online server.
      * 
      * @param data the JSON data 
+     * @throws IllegalArgumentException if the data does not contain complete scan results
+     * @see ScanResultDecoder
      */
     public ScanResult(String data) {
-        JSONObject jsonData = (JSONObject) JSONValue.parse(data);
-        JSONObject scanResults = (JSONObject) JSONValue.parse(jsonData.get("scan_results").toString());
+        ScanResultDecoder decoder = ScanResultDecoder.decode(data);
+        ScanResult decoded = decoder == null ? null : decoder.getScanResult();
+        if (decoded == null)
+            throw new IllegalArgumentException("No scan results in " + data);
         
-        placeInQueue        = Integer.parseInt(scanResults.get("in_queue").toString());
-        progressPercentage  = Integer.parseInt(scanResults.get("progress_percentage").toString());
-        resultID            = Integer.parseInt(scanResults.get("scan_all_result_i").toString());
+        placeInQueue        = decoded.placeInQueue;
+        progressPercentage  = decoded.progressPercentage;
+        resultID            = decoded.resultID;
+        resultString        = decoded.resultString;
+    }
+    
+    /**
+     * Creates a <code>ScanResult</code> from JSON data that has already been parsed.
+     * 
+     * @param jsonData the parsed JSON data
+     */
+    public ScanResult(JSONObject jsonData) {
+        JSONObject scanResults = (JSONObject) jsonData.get("scan_results");
+        
+        placeInQueue        = toInt(scanResults.get("in_queue"));
+        progressPercentage  = toInt(scanResults.get("progress_percentage"));
+        resultID            = toInt(scanResults.get("scan_all_result_i"));
         resultString        = scanResults.get("scan_all_result_a").toString();
     }
     
+    /**
+     * Creates a <code>ScanResult</code> from fields that have already been decoded.
+     * 
+     * @param placeInQueue the in_queue value
+     * @param progressPercentage the progress_percentage value
+     * @param resultID the scan_all_result_i value
+     * @param resultString the scan_all_result_a value
+     */
+    public ScanResult(int placeInQueue, int progressPercentage, int resultID, String resultString) {
+        this.placeInQueue       = placeInQueue;
+        this.progressPercentage = progressPercentage;
+        this.resultID           = resultID;
+        this.resultString       = resultString;
+    }
+    
+    /**
+     * Creates a complete <code>ScanResult</code> from a previously recorded verdict.
+     * 
+     * This is used to restore results from the <code>ScanResultCache</code>
+     * without contacting the Metascan Online server.
+     * 
+     * @param resultID the recorded scan_all_result_i value
+     * @param resultString the recorded scan_all_result_a value
+     */
+    public ScanResult(int resultID, String resultString) {
+        this(0, 100, resultID, resultString);
+    }
+    
     public int getPlaceInQueue() {
         return placeInQueue;
     }
@@ -59,4 +105,10 @@ public class ScanResult {
     public boolean isClean() {
         return resultID == 0 || resultID == 7;
     }
+    
+    private static int toInt(Object value) {
+        if (value instanceof Number)
+            return ((Number) value).intValue();
+        return Integer.parseInt(value.toString());
+    }
 }
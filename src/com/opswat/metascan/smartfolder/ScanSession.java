@@ -11,7 +11,12 @@ public class ScanSession {
     
     private File file;
     private String dataID;
+    private String digest;
+    private long lastModified = -1;
     private ScanResult scanResult;
+    private ScanPriority priority = ScanPriority.NEW_FILE;
+    private long rank;
+    private boolean ranked = false;
     
     public ScanSession(File file) {
         this.file = file;
@@ -29,6 +34,22 @@ public class ScanSession {
         return dataID;
     }
     
+    public void setDigest(String digest) {
+        this.digest = digest;
+    }
+    
+    public String getDigest() {
+        return digest;
+    }
+    
+    public void setLastModified(long lastModified) {
+        this.lastModified = lastModified;
+    }
+    
+    public long getLastModified() {
+        return lastModified;
+    }
+    
     public void setScanResult(ScanResult scanResult) {
         this.scanResult = scanResult;
     }
@@ -40,4 +61,36 @@ public class ScanSession {
     public ScanResult getScanResult() {
         return scanResult;
     }
+    
+    public void setPriority(ScanPriority priority) {
+        this.priority = priority;
+    }
+    
+    public ScanPriority getPriority() {
+        return priority;
+    }
+    
+    /**
+     * Ranks the session by its priority, as of now.
+     * 
+     * This is done once, when the session is first pushed, so that a session
+     * keeps its place while it waits for the <code>ScanPipeline</code> and if it
+     * has to be retried. Later calls do nothing.
+     */
+    void rank() {
+        if (!ranked) {
+            rank = priority.rank(file);
+            ranked = true;
+        }
+    }
+    
+    /**
+     * Gets the rank of the session; sessions with lower ranks are served first.
+     * 
+     * @return the rank
+     * @see ScanPriority
+     */
+    public long getRank() {
+        return rank;
+    }
 }
@@ -0,0 +1,274 @@
+package com.opswat.metascan.smartfolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Statically limits the number of <code>WatchKey</code>s used by the
+ * <code>DirectoryMonitor</code>.
+ * 
+ * Every watched directory uses a watch of the operating system (such as an
+ * inotify watch on Linux), and those are limited and use kernel memory. Once
+ * the budget is spent, any further directory tree is demoted: it is polled by
+ * the <code>DirectoryPoller</code> instead of being watched.<br><br>
+ * 
+ * Every so often the budget is rebalanced. Demoted subtrees in which the poller
+ * found changes are promoted back to being watched, and if there is not enough
+ * room for them, watched subtrees that have been idle are demoted to make room,
+ * starting with the deepest and least recently active ones.<br><br>
+ * 
+ * The budget can be tuned with the following system properties:<ul>
+ * <li><b>smartfolder.watch.maxKeys: </b>         the largest number of directories that
+ *                                                are watched at once (8192 by default)</li>
+ * <li><b>smartfolder.watch.idleMillis: </b>      the time (in milliseconds) a watched
+ *                                                directory must go without changes before
+ *                                                it may be demoted (10 minutes by default)</li>
+ * <li><b>smartfolder.watch.rebalanceMillis: </b> the time (in milliseconds) between two
+ *                                                rebalances (1 minute by default)</li></ul>
+ * 
+ * @author Tristan Currens
+ * @see DirectoryMonitor
+ */
+public class WatchBudget {
+    
+    /**
+     * The largest number of <code>WatchKey</code>s that may be in use at once.
+     */
+    private static final int MAX_WATCH_KEYS = Math.max(1, Integer.getInteger("smartfolder.watch.maxKeys", 8192));
+    
+    /**
+     * The amount of time (in nanoseconds) a watched directory must go without
+     * changes before it may be demoted.
+     */
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(Math.max(0, Long.getLong("smartfolder.watch.idleMillis", 600000)));
+    
+    /**
+     * The amount of time (in milliseconds) between two rebalances.
+     */
+    static final long REBALANCE_INTERVAL_MILLIS = Math.max(1000, Long.getLong("smartfolder.watch.rebalanceMillis", 60000));
+    
+    /**
+     * The directories at the top of each demoted subtree.
+     */
+    private static final Set<Path> demotedSubtrees = ConcurrentHashMap.<Path>newKeySet();
+    
+    /**
+     * A mapping from directory to the time (from <code>System.nanoTime</code>)
+     * at which a change was last seen in it.
+     * 
+     * Watched directories are recorded individually, demoted subtrees as a whole.
+     */
+    private static final ConcurrentHashMap<Path, Long> lastActivityNanos = new ConcurrentHashMap();
+    
+    /**
+     * The time (from <code>System.nanoTime</code>) at which the last rebalance ran.
+     */
+    private static long lastRebalanceNanos = System.nanoTime();
+    
+    /**
+     * Gets the number of <code>WatchKey</code>s currently in use.
+     * 
+     * @return the number of watched directories
+     */
+    public static int getWatchKeysInUse() {
+        return DirectoryMonitor.getWatchKeyCount();
+    }
+    
+    /**
+     * Gets the largest number of <code>WatchKey</code>s that may be in use at once.
+     * 
+     * @return the budget
+     */
+    public static int getMaxWatchKeys() {
+        return MAX_WATCH_KEYS;
+    }
+    
+    /**
+     * Gets the number of subtrees that are polled because the budget was spent.
+     * 
+     * @return the number of demoted subtrees
+     */
+    public static int getDemotedSubtreeCount() {
+        return demotedSubtrees.size();
+    }
+    
+    /**
+     * Checks if another directory can be watched.
+     * 
+     * @return <code>true</code> if the budget has not been spent; <code>false</code>
+     * otherwise
+     */
+    static boolean hasRoom() {
+        return DirectoryMonitor.getWatchKeyCount() < MAX_WATCH_KEYS;
+    }
+    
+    /**
+     * Records that a directory tree is being polled because the budget was spent.
+     * 
+     * @param directoryPath the <code>Path</code> to the top of the subtree
+     */
+    static void recordDemotion(Path directoryPath) {
+        demotedSubtrees.add(directoryPath);
+    }
+    
+    /**
+     * Checks if a directory is the top of a demoted subtree.
+     * 
+     * @param directoryPath the <code>Path</code> to the directory
+     * @return <code>true</code> if the directory was demoted; <code>false</code> otherwise
+     */
+    static boolean isDemoted(Path directoryPath) {
+        return demotedSubtrees.contains(directoryPath);
+    }
+    
+    /**
+     * Forgets everything known about a directory that is no longer monitored.
+     * 
+     * @param directoryPath the <code>Path</code> to the directory
+     */
+    static void forget(Path directoryPath) {
+        demotedSubtrees.remove(directoryPath);
+        lastActivityNanos.remove(directoryPath);
+    }
+    
+    /**
+     * Records that a change was seen in a watched directory or a demoted subtree.
+     * 
+     * @param directoryPath the <code>Path</code> to the directory
+     */
+    static void recordActivity(Path directoryPath) {
+        if (directoryPath != null)
+            lastActivityNanos.put(directoryPath, System.nanoTime());
+    }
+    
+    /**
+     * Promotes the demoted subtrees that have been active since the last
+     * rebalance, demoting idle watched subtrees to make room for them.
+     * 
+     * Demoted subtrees that were deleted are dropped, which stops polling them.
+     * 
+     * @return <code>true</code> if any subtree was promoted or demoted;
+     * <code>false</code> otherwise
+     */
+    static synchronized boolean rebalance() {
+        final long now = System.nanoTime();
+        boolean changed = false;
+        
+        // find the demoted subtrees that changed since the last rebalance,
+        // forgetting the ones that are no longer polled or no longer exist
+        ArrayList<Path> activeSubtrees = new ArrayList();
+        for (Path subtree : demotedSubtrees) {
+            if (!DirectoryPoller.isPolledRoot(subtree.toFile())) {
+                forget(subtree);
+            } else if (!Files.isDirectory(subtree)) {
+                DirectoryMonitor.dropDemotedSubtree(subtree);
+                changed = true;
+            } else if (getLastActivity(subtree) - lastRebalanceNanos > 0) {
+                activeSubtrees.add(subtree);
+            }
+        }
+        lastRebalanceNanos = now;
+        
+        // promote the most recently active subtrees first
+        Collections.sort(activeSubtrees, new Comparator<Path>() {
+            @Override
+            public int compare(Path first, Path second) {
+                return Long.signum(getLastActivity(second) - getLastActivity(first));
+            }
+        });
+        
+        for (Path subtree : activeSubtrees) {
+            File directory = subtree.toFile();
+            int needed = DirectoryPoller.countDirectories(directory) - (MAX_WATCH_KEYS - DirectoryMonitor.getWatchKeyCount());
+            if (needed > 0 && !demoteIdleSubtrees(needed, now))
+                break;
+            
+            DirectoryMonitor.promoteSubtree(directory);
+            changed = true;
+        }
+        
+        return changed;
+    }
+    
+    /**
+     * Demotes watched subtrees that have been idle until enough
+     * <code>WatchKey</code>s have been freed.
+     * 
+     * The deepest directories are demoted first, and of those the least recently
+     * active. Top-level SmartFolders are never demoted this way.
+     * 
+     * @param needed the number of <code>WatchKey</code>s to free
+     * @param now the current time (from <code>System.nanoTime</code>)
+     * @return <code>true</code> if enough <code>WatchKey</code>s were freed;
+     * <code>false</code> if there were not enough idle directories
+     */
+    private static boolean demoteIdleSubtrees(int needed, long now) {
+        ArrayList<Path> candidates = new ArrayList();
+        int available = 0;
+        for (Path directoryPath : DirectoryMonitor.getWatchedPaths()) {
+            if (isIdle(directoryPath, now) && !DirectoryMonitor.isTopLevel(directoryPath)) {
+                candidates.add(directoryPath);
+                available++;
+            }
+        }
+        
+        // demoting a subtree frees at most one key per idle directory, so don't
+        // demote anything unless it can make enough room
+        if (available < needed)
+            return false;
+        
+        Collections.sort(candidates, new Comparator<Path>() {
+            @Override
+            public int compare(Path first, Path second) {
+                int depth = second.getNameCount() - first.getNameCount();
+                return depth != 0 ? depth : Long.signum(getLastActivity(first) - getLastActivity(second));
+            }
+        });
+        
+        // a directory is only demoted along with its sub-directories, so skip the
+        // ones with active sub-directories
+        int freed = 0;
+        for (Path directoryPath : candidates) {
+            if (freed >= needed)
+                break;
+            if (isSubtreeIdle(directoryPath, now))
+                freed += DirectoryMonitor.demoteSubtree(directoryPath);
+        }
+        return freed >= needed;
+    }
+    
+    /**
+     * Checks if a watched directory has gone without changes for long enough to be demoted.
+     */
+    private static boolean isIdle(Path directoryPath, long now) {
+        return now - getLastActivity(directoryPath) >= IDLE_NANOS;
+    }
+    
+    /**
+     * Checks if a watched directory and all of its watched sub-directories are idle.
+     */
+    private static boolean isSubtreeIdle(Path directoryPath, long now) {
+        if (!isIdle(directoryPath, now))
+            return false;
+        for (Path child : DirectoryMonitor.getWatchedChildren(directoryPath))
+            if (DirectoryMonitor.isWatched(child) && !isSubtreeIdle(child, now))
+                return false;
+        return true;
+    }
+    
+    /**
+     * Gets the time (from <code>System.nanoTime</code>) at which a change was
+     * last seen in a directory.
+     */
+    private static long getLastActivity(Path directoryPath) {
+        Long lastActivity = lastActivityNanos.get(directoryPath);
+        return lastActivity == null ? lastRebalanceNanos - IDLE_NANOS : lastActivity;
+    }
+}
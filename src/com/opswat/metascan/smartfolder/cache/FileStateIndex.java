@@ -0,0 +1,308 @@
+package com.opswat.metascan.smartfolder.cache;
+
+import com.opswat.metascan.smartfolder.ScanManager;
+import com.opswat.metascan.smartfolder.ScanResult;
+import com.opswat.metascan.smartfolder.ScanSession;
+import com.opswat.metascan.smartfolder.settings.SettingsManager;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Statically remembers the state of every <code>File</code> that has been
+ * scanned, so that unchanged <code>File</code>s are not uploaded again after the
+ * program restarts.
+ * 
+ * For each path, the index stores the size and last modified time the
+ * <code>File</code> had when it was scanned, the digest of its contents and the
+ * verdict of the scan.<br><br>
+ * 
+ * The index is kept on the user's system as a snapshot plus a log. Every new
+ * state is appended to the log; once the log holds more records than the
+ * snapshot, the whole index is written to a new snapshot (which replaces the
+ * old one in a single step), the log is emptied, and the states of deleted
+ * <code>File</code>s are forgotten. The index is only read from the user's
+ * system the first time it is used.
+ * 
+ * @author Tristan Currens
+ * @see ScanManager
+ */
+public class FileStateIndex {
+    
+    /**
+     * The location of the snapshot on the user's system.
+     */
+    private static final String SNAPSHOT_FILE_LOCATION = SettingsManager.SETTINGS_DIRECTORY + "filestate.snapshot";
+    
+    /**
+     * The location of the log on the user's system.
+     */
+    private static final String LOG_FILE_LOCATION = SettingsManager.SETTINGS_DIRECTORY + "filestate.log";
+    
+    /**
+     * The number of records the log may hold before it is compacted, no matter
+     * how small the snapshot is.
+     */
+    private static final int MIN_COMPACTION_RECORDS = 10000;
+    
+    /**
+     * A mapping from path to the last recorded state of the <code>File</code> at that path.
+     */
+    private static final ConcurrentHashMap<String, FileState> states = new ConcurrentHashMap();
+    
+    /**
+     * The writer used to append new states to the log.
+     */
+    private static BufferedWriter logWriter;
+    
+    /**
+     * The number of records currently stored in the log.
+     */
+    private static int loggedRecords = 0;
+    
+    /**
+     * Stores whether or not a <code>Thread</code> is currently compacting the index.
+     */
+    private static boolean compacting = false;
+    
+    /**
+     * Stores whether or not the index has been loaded from the user's system.
+     */
+    private static volatile boolean loaded = false;
+    
+    /**
+     * The recorded state of a scanned <code>File</code>.
+     */
+    public static class FileState {
+        
+        private final long size;
+        private final long lastModified;
+        private final String digest;
+        private final ScanResult verdict;
+        
+        FileState(long size, long lastModified, String digest, ScanResult verdict) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.digest = digest;
+            this.verdict = verdict;
+        }
+        
+        public long getSize() {
+            return size;
+        }
+        
+        public long getLastModified() {
+            return lastModified;
+        }
+        
+        public String getDigest() {
+            return digest;
+        }
+        
+        public ScanResult getVerdict() {
+            return verdict;
+        }
+    }
+    
+    /**
+     * Gets the recorded state of the specified <code>File</code>.
+     * 
+     * @param file the <code>File</code>
+     * @return the recorded state, or <code>null</code> if the <code>File</code>
+     * has never been scanned
+     */
+    public static FileState get(File file) {
+        if (!loaded)
+            load();
+        return states.get(file.getPath());
+    }
+    
+    /**
+     * Checks if the specified <code>File</code> was found to be clean and has not
+     * changed since.
+     * 
+     * <code>File</code>s that were found to be suspicious are never reported as
+     * unchanged, so that they are brought to the user's attention again.
+     * 
+     * @param file the <code>File</code> to check
+     * @param lastModified the time (in milliseconds) the <code>File</code> was last modified
+     * @return <code>true</code> if the <code>File</code> does not need to be scanned
+     * again; <code>false</code> otherwise
+     */
+    public static boolean isUnchanged(File file, long lastModified) {
+        FileState state = get(file);
+        return state != null &&
+                state.getLastModified() == lastModified &&
+                state.getVerdict().isClean() &&
+                state.getSize() == file.length();
+    }
+    
+    /**
+     * Records the state of the <code>File</code> of a finished <code>ScanSession</code>.
+     * 
+     * Nothing is recorded if the <code>File</code> was modified after the session
+     * was pushed, because the verdict may not match its current contents.
+     * 
+     * @param session the finished <code>ScanSession</code>
+     */
+    public static void record(ScanSession session) {
+        ScanResult scanResult = session.getScanResult();
+        File file = session.getFile();
+        if (scanResult == null || !scanResult.isComplete() || file.lastModified() != session.getLastModified())
+            return;
+        
+        if (!loaded)
+            load();
+        
+        FileState state = new FileState(file.length(), session.getLastModified(), session.getDigest(),
+                new ScanResult(scanResult.getResultID(), scanResult.getResultString()));
+        states.put(file.getPath(), state);
+        
+        Map<String, FileState> snapshot;
+        synchronized (FileStateIndex.class) {
+            append(file.getPath(), state);
+            if (compacting || loggedRecords <= Math.max(MIN_COMPACTION_RECORDS, states.size()))
+                return;
+            compacting = true;
+            snapshot = new HashMap(states);
+        }
+        
+        try {
+            compact(snapshot);
+        } finally {
+            synchronized (FileStateIndex.class) {
+                compacting = false;
+            }
+        }
+    }
+    
+    /**
+     * Loads the snapshot and the log from the user's system and opens the log
+     * for appending.
+     */
+    private static synchronized void load() {
+        if (loaded)
+            return;
+        
+        read(new File(SNAPSHOT_FILE_LOCATION));
+        loggedRecords = read(new File(LOG_FILE_LOCATION));
+        
+        try {
+            new File(LOG_FILE_LOCATION).getParentFile().mkdirs();
+            logWriter = new BufferedWriter(new FileWriter(LOG_FILE_LOCATION, true));
+        } catch (IOException e) {}
+        
+        loaded = true;
+    }
+    
+    /**
+     * Reads every record in the specified file into the index.
+     * 
+     * @param file the snapshot or log
+     * @return the number of records that were read
+     */
+    private static int read(File file) {
+        int records = 0;
+        if (file.exists()) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    // each record is stored as "size<TAB>lastModified<TAB>resultID<TAB>digest<TAB>resultString<TAB>path"
+                    String[] record = line.split("\t", 6);
+                    if (record.length == 6) {
+                        try {
+                            states.put(record[5], new FileState(
+                                    Long.parseLong(record[0]),
+                                    Long.parseLong(record[1]),
+                                    record[3].equals("-") ? null : record[3],
+                                    new ScanResult(Integer.parseInt(record[2]), record[4])));
+                            records++;
+                        } catch (NumberFormatException e) {}
+                    }
+                }
+            } catch (IOException e) {}
+        }
+        return records;
+    }
+    
+    /**
+     * Appends a single record to the log.
+     */
+    private static void append(String path, FileState state) {
+        if (logWriter == null)
+            return;
+        
+        try {
+            write(logWriter, path, state);
+            logWriter.flush();
+            loggedRecords++;
+        } catch (IOException e) {}
+    }
+    
+    /**
+     * Writes a single record.
+     */
+    private static void write(BufferedWriter writer, String path, FileState state) throws IOException {
+        writer.write(state.getSize() + "\t" +
+                state.getLastModified() + "\t" +
+                state.getVerdict().getResultID() + "\t" +
+                (state.getDigest() == null ? "-" : state.getDigest()) + "\t" +
+                state.getVerdict().getResultString().replaceAll("[\t\r\n]", " ") + "\t" +
+                path);
+        writer.newLine();
+    }
+    
+    /**
+     * Writes the whole index to a new snapshot and empties the log.
+     * 
+     * The <code>File</code>s in the specified copy of the index are checked
+     * without holding the index's lock, since that touches the user's system
+     * once for every <code>File</code>; other sessions keep being recorded in
+     * the meantime. The lock is only taken to forget the deleted
+     * <code>File</code>s and write the snapshot, so every state that was logged
+     * before the log is emptied is also in the snapshot.<br><br>
+     * 
+     * The snapshot is written to a temporary file first and then moved over the
+     * old snapshot, so a crash while compacting never loses the index.
+     * 
+     * @param snapshot a copy of the index, taken while holding its lock
+     */
+    private static void compact(Map<String, FileState> snapshot) {
+        // find the Files that have been deleted since they were scanned
+        Map<String, FileState> deleted = new HashMap();
+        for (Map.Entry<String, FileState> entry : snapshot.entrySet())
+            if (!new File(entry.getKey()).exists())
+                deleted.put(entry.getKey(), entry.getValue());
+        
+        File snapshotFile = new File(SNAPSHOT_FILE_LOCATION);
+        File temporaryFile = new File(SNAPSHOT_FILE_LOCATION + ".tmp");
+        
+        synchronized (FileStateIndex.class) {
+            // a File that was recorded again after the copy was taken has been
+            // recreated, so only the states that are still the same are forgotten
+            for (Map.Entry<String, FileState> entry : deleted.entrySet())
+                states.remove(entry.getKey(), entry.getValue());
+            
+            try {
+                try (BufferedWriter writer = new BufferedWriter(new FileWriter(temporaryFile, false))) {
+                    for (Map.Entry<String, FileState> entry : states.entrySet())
+                        write(writer, entry.getKey(), entry.getValue());
+                }
+                Files.move(temporaryFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                
+                if (logWriter != null)
+                    logWriter.close();
+                logWriter = new BufferedWriter(new FileWriter(LOG_FILE_LOCATION, false));
+                loggedRecords = 0;
+            } catch (IOException e) {}
+        }
+    }
+}
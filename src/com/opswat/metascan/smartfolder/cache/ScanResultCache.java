@@ -0,0 +1,215 @@
+package com.opswat.metascan.smartfolder.cache;
+
+import com.opswat.metascan.smartfolder.ScanManager;
+import com.opswat.metascan.smartfolder.ScanResult;
+import com.opswat.metascan.smartfolder.ScanSession;
+import com.opswat.metascan.smartfolder.settings.SettingsManager;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Statically stores the results of previously scanned <code>File</code>s, keyed
+ * by the SHA-256 digest of their contents.
+ * 
+ * A <code>File</code> whose digest is already known does not need to be uploaded
+ * to the Metascan Online server again; its recorded result is finalized locally
+ * by the <code>ScanManager</code>. This allows the same <code>File</code> to be
+ * copied into any number of SmartFolders while only being uploaded once.<br><br>
+ * 
+ * The cache holds at most <code>MAX_ENTRIES</code> results, evicting the least
+ * recently used digest first. Every new result is appended to a log file in the
+ * settings directory so that the cache survives restarts; the log is rewritten
+ * from the in-memory cache whenever it grows past twice the cache size.
+ * 
+ * @author Tristan Currens
+ * @see ScanManager
+ */
+public class ScanResultCache {
+    
+    /**
+     * The maximum number of digests to remember.
+     */
+    private static final int MAX_ENTRIES = 10000;
+    
+    /**
+     * The size (in bytes) of the buffer used to read <code>File</code>s while hashing.
+     */
+    private static final int DIGEST_BUFFER_SIZE = 64 * 1024;
+    
+    /**
+     * The location of the cache log on the user's system.
+     */
+    private static final String CACHE_FILE_LOCATION = SettingsManager.SETTINGS_DIRECTORY + "scancache.log";
+    
+    /**
+     * A mapping from digest to the last <code>ScanResult</code> recorded for it,
+     * in least recently used order.
+     */
+    private static final LinkedHashMap<String, ScanResult> cache = new LinkedHashMap<String, ScanResult>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ScanResult> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    
+    /**
+     * The writer used to append new results to the cache log.
+     */
+    private static BufferedWriter logWriter;
+    
+    /**
+     * The number of records currently stored in the cache log.
+     */
+    private static int loggedRecords = 0;
+    
+    /**
+     * Stores whether or not the cache has been loaded from the user's system.
+     */
+    private static boolean loaded = false;
+    
+    /**
+     * Looks up the recorded result for the specified <code>ScanSession</code>.
+     * 
+     * The digest of the session's <code>File</code> will be computed (and stored
+     * in the session) if it has not been already.
+     * 
+     * @param session the <code>ScanSession</code> to look up
+     * @return the recorded <code>ScanResult</code>, or <code>null</code> if the
+     * contents of the <code>File</code> have not been scanned before
+     */
+    public static ScanResult lookup(ScanSession session) {
+        if (session.getDigest() == null)
+            session.setDigest(computeDigest(session.getFile()));
+        
+        if (session.getDigest() == null)
+            return null;
+        
+        synchronized (ScanResultCache.class) {
+            if (!loaded)
+                load();
+            return cache.get(session.getDigest());
+        }
+    }
+    
+    /**
+     * Records the result of the specified <code>ScanSession</code>.
+     * 
+     * Only complete results for sessions with a known digest are recorded.
+     * 
+     * @param session the finished <code>ScanSession</code>
+     */
+    public static synchronized void store(ScanSession session) {
+        ScanResult scanResult = session.getScanResult();
+        if (session.getDigest() == null || scanResult == null || !scanResult.isComplete())
+            return;
+        
+        if (!loaded)
+            load();
+        
+        // avoid growing the log when the result was restored from the cache
+        ScanResult previous = cache.put(session.getDigest(), scanResult);
+        if (previous != null && previous.getResultID() == scanResult.getResultID())
+            return;
+        
+        append(session.getDigest(), scanResult);
+        if (loggedRecords > 2 * MAX_ENTRIES)
+            compact();
+    }
+    
+    /**
+     * Computes the SHA-256 digest of the specified <code>File</code>.
+     * 
+     * @param file the <code>File</code> to hash
+     * @return the digest as a lower-case hexadecimal <code>String</code>, or
+     * <code>null</code> if the <code>File</code> could not be read
+     */
+    public static String computeDigest(File file) {
+        try (InputStream in = new FileInputStream(file)) {
+            MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[DIGEST_BUFFER_SIZE];
+            
+            int read;
+            while ((read = in.read(buffer)) != -1)
+                messageDigest.update(buffer, 0, read);
+            
+            StringBuilder hex = new StringBuilder(64);
+            for (byte b : messageDigest.digest())
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            return hex.toString();
+        } catch (IOException | NoSuchAlgorithmException e) {}
+        
+        return null;
+    }
+    
+    /**
+     * Loads the cache log from the user's system and opens it for appending.
+     */
+    private static void load() {
+        loaded = true;
+        
+        File cacheFile = new File(CACHE_FILE_LOCATION);
+        if (cacheFile.exists()) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(cacheFile))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    // each record is stored as "digest<TAB>resultID<TAB>resultString"
+                    String[] record = line.split("\t", 3);
+                    if (record.length == 3) {
+                        try {
+                            cache.put(record[0], new ScanResult(Integer.parseInt(record[1]), record[2]));
+                            loggedRecords++;
+                        } catch (NumberFormatException e) {}
+                    }
+                }
+            } catch (IOException e) {}
+        }
+        
+        compact();
+    }
+    
+    /**
+     * Appends a single record to the cache log.
+     */
+    private static void append(String digest, ScanResult scanResult) {
+        if (logWriter == null)
+            return;
+        
+        try {
+            logWriter.write(digest + "\t" + scanResult.getResultID() + "\t" + scanResult.getResultString().replaceAll("[\t\r\n]", " "));
+            logWriter.newLine();
+            logWriter.flush();
+            loggedRecords++;
+        } catch (IOException e) {}
+    }
+    
+    /**
+     * Rewrites the cache log so that it only contains the records currently in
+     * the cache.
+     */
+    private static void compact() {
+        try {
+            if (logWriter != null)
+                logWriter.close();
+            
+            File cacheFile = new File(CACHE_FILE_LOCATION);
+            cacheFile.getParentFile().mkdirs();
+            
+            logWriter = new BufferedWriter(new FileWriter(cacheFile, false));
+            loggedRecords = 0;
+            for (Map.Entry<String, ScanResult> entry : cache.entrySet())
+                append(entry.getKey(), entry.getValue());
+        } catch (IOException e) {
+            logWriter = null;
+        }
+    }
+}
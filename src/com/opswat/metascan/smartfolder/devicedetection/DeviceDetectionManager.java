@@ -1,6 +1,7 @@
 package com.opswat.metascan.smartfolder.devicedetection;
 
 import com.opswat.metascan.smartfolder.ScanManager;
+import com.opswat.metascan.smartfolder.ScanPriority;
 import com.opswat.metascan.smartfolder.ui.SmartFolderFrame;
 import com.opswat.metascan.smartfolder.ui.UserInterfaceManager;
 import com.opswat.metascan.smartfolder.ui.panel.DeviceDetectionPanel;
@@ -126,7 +127,7 @@ public class DeviceDetectionManager {
             // if the device exists now, and didn't used to (ie. the device is new)
             if (devices[i].exists() && !deviceEnabled[i]) {
                 UserInterfaceManager.getSmartFolderFrame().getDeviceDetectionPanel().addDeviceToTable(devices[i]);
-                ScanManager.pushDirectoryForUpload(devices[i], true);
+                ScanManager.pushDirectoryForUpload(devices[i], ScanPriority.DEVICE_SCAN, true);
             } 
             
             // if the device doesn't exist now, and used to (ie. the device was removed)
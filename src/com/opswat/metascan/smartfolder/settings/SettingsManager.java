@@ -3,29 +3,41 @@ package com.opswat.metascan.smartfolder.settings;
 import com.opswat.metascan.smartfolder.devicedetection.DeviceDetectionManager;
 import com.opswat.metascan.smartfolder.ScanManager;
 import com.opswat.metascan.smartfolder.DirectoryMonitor;
+import com.opswat.metascan.smartfolder.MonitoringStrategy;
+import com.opswat.metascan.smartfolder.ScanFilter;
 import com.opswat.metascan.smartfolder.ui.UserInterfaceManager;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Stores the settings that were specified by the user.
  * 
  * This will allow the user's settings (including which directories to monitor)
  * to carry over from one run to another.
- *
+ * 
  * @author Tristan Currens
  */
 public class SettingsManager {
     
+    /**
+     * The directory in which the program stores its data on the user's system.
+     * 
+     * ("C:\Users\[UserName]\AppData\Local\Temp\OPSWAT\Metascan\" by default)
+     */
+    public static final String SETTINGS_DIRECTORY = System.getProperty("java.io.tmpdir") + "OPSWAT\\Metascan\\";
+    
     /**
      * The location of the settings file on the user's system.
      * 
      * ("C:\Users\[UserName]\AppData\Local\Temp\OPSWAT\Metascan\settings.properties" by default)
      */
-    private static final String SETTINGS_FILE_LOCATION = System.getProperty("java.io.tmpdir") + "OPSWAT\\Metascan\\settings.properties";
+    private static final String SETTINGS_FILE_LOCATION = SETTINGS_DIRECTORY + "settings.properties";
     
     /**
      * The API key used to connect to the Metascan Online server.
@@ -53,6 +65,23 @@ public class SettingsManager {
      */
     private static File[] smartFolders = new File[0];
     
+    /**
+     * The paths of the SmartFolders that are polled for changes instead of being
+     * watched (see <code>MonitoringStrategy</code>).
+     */
+    private static final Set<String> pollingSmartFolders = ConcurrentHashMap.<String>newKeySet();
+    
+    /**
+     * The rules of the <code>ScanFilter</code> (see <code>ScanFilter</code> for
+     * their syntax).
+     */
+    private static String includeFilters    = "";
+    private static String excludeFilters    = "";
+    private static String allowedExtensions = "";
+    private static String deniedExtensions  = "";
+    private static long minFileSize         = 0;
+    private static long maxFileSize         = 0;   // no limit
+    
     /**
      * Loads the current settings from the system.
      * 
@@ -79,6 +108,25 @@ public class SettingsManager {
             hideMenuOnStartupEnabled    = properties.get("hideMenuOnStartupEnabled").equals("true");
             autoScanNewDevicesEnabled   = properties.get("autoScanNewDevicesEnabled").equals("true");
             String smartFoldersList     = properties.get("smartFolders").toString();
+            String pollingFoldersList   = properties.getProperty("pollingSmartFolders", "");
+            includeFilters              = properties.getProperty("includeFilters", "");
+            excludeFilters              = properties.getProperty("excludeFilters", "");
+            allowedExtensions           = properties.getProperty("allowedExtensions", "");
+            deniedExtensions            = properties.getProperty("deniedExtensions", "");
+            minFileSize                 = parseSize(properties.getProperty("minFileSize", "0"));
+            maxFileSize                 = parseSize(properties.getProperty("maxFileSize", "0"));
+            
+            // compile the filter before any SmartFolders are registered; rules
+            // that cannot be compiled are ignored rather than stopping the load
+            try {
+                ScanFilter.setRules(includeFilters, excludeFilters, allowedExtensions, deniedExtensions, minFileSize, maxFileSize);
+            } catch (IllegalArgumentException e) {}
+            
+            // parse the Paths of the SmartFolders that are polled, which must be
+            // known before the SmartFolders are registered
+            for (String pollingFolder : pollingFoldersList.split("\\,"))
+                if (!pollingFolder.isEmpty())
+                    pollingSmartFolders.add(pollingFolder);
             
             setApiKey(apiKey);
             setHideMenuOnStartupEnabled(hideMenuOnStartupEnabled);
@@ -123,6 +171,22 @@ public class SettingsManager {
             }
             properties.put("smartFolders", smartFoldersString);
             
+            // make the polled directories into a String separated by commas
+            String pollingFoldersString = "";
+            for (String pollingFolder : pollingSmartFolders) {
+                if (!pollingFoldersString.isEmpty())
+                    pollingFoldersString += ",";
+                pollingFoldersString += pollingFolder;
+            }
+            properties.put("pollingSmartFolders", pollingFoldersString);
+            
+            properties.put("includeFilters", includeFilters);
+            properties.put("excludeFilters", excludeFilters);
+            properties.put("allowedExtensions", allowedExtensions);
+            properties.put("deniedExtensions", deniedExtensions);
+            properties.put("minFileSize", minFileSize + "");
+            properties.put("maxFileSize", maxFileSize + "");
+            
             // save
             properties.store(new FileOutputStream(settingsFile), "");
         } catch (IOException e) {}
@@ -180,11 +244,86 @@ public class SettingsManager {
         saveSettings();
     }
     
-    public static void updateSmartFolders() {
-        smartFolders = UserInterfaceManager.getSmartFolderFrame().getSmartFolderPanel().getTopLevelSmartFolders();
+    /**
+     * Stores the SmartFolders that are currently registered with the
+     * <code>DirectoryMonitor</code> in the user's settings.
+     * 
+     * The list is taken from the <code>DirectoryMonitor</code> rather than from
+     * the user interface, so this may be called from any <code>Thread</code>.
+     */
+    public static synchronized void updateSmartFolders() {
+        ArrayList<File> topLevelDirectories = DirectoryMonitor.getTopLevelDirectories();
+        smartFolders = topLevelDirectories.toArray(new File[topLevelDirectories.size()]);
         saveSettings();
     }
-     
+    
+    /**
+     * Gets the <code>MonitoringStrategy</code> used for the specified SmartFolder.
+     * 
+     * @param smartFolder the top-level directory
+     * @return <code>POLL</code> if the user chose to poll the SmartFolder;
+     * <code>WATCH</code> otherwise
+     */
+    public static MonitoringStrategy getMonitoringStrategy(File smartFolder) {
+        return pollingSmartFolders.contains(smartFolder.getPath()) ? MonitoringStrategy.POLL : MonitoringStrategy.WATCH;
+    }
+    
+    /**
+     * Sets the <code>MonitoringStrategy</code> used for the specified SmartFolder.
+     * 
+     * This only stores the choice; the SmartFolder must be registered again for
+     * it to take effect (see <code>DirectoryMonitor.setMonitoringStrategy</code>).
+     * 
+     * @param smartFolder the top-level directory
+     * @param strategy the new strategy
+     */
+    public static void setMonitoringStrategy(File smartFolder, MonitoringStrategy strategy) {
+        if (strategy == MonitoringStrategy.POLL)
+            pollingSmartFolders.add(smartFolder.getPath());
+        else
+            pollingSmartFolders.remove(smartFolder.getPath());
+        saveSettings();
+    }
+    
+    /**
+     * Sets the rules of the <code>ScanFilter</code>.
+     * 
+     * The rules are compiled before they are stored, so invalid rules are never
+     * saved. They only apply to directories that are registered afterwards.
+     * 
+     * @param includeFilters the include patterns, separated by semicolons
+     * @param excludeFilters the exclude patterns, separated by semicolons
+     * @param allowedExtensions the allowed extensions, separated by commas
+     * @param deniedExtensions the denied extensions, separated by commas
+     * @param minFileSize the smallest size (in bytes) of a scanned <code>File</code>
+     * @param maxFileSize the largest size (in bytes) of a scanned <code>File</code>,
+     * or 0 for no limit
+     * @throws IllegalArgumentException if a pattern is not valid
+     */
+    public static void setScanFilter(String includeFilters, String excludeFilters, String allowedExtensions,
+            String deniedExtensions, long minFileSize, long maxFileSize) {
+        ScanFilter.setRules(includeFilters, excludeFilters, allowedExtensions, deniedExtensions, minFileSize, maxFileSize);
+        
+        SettingsManager.includeFilters    = includeFilters;
+        SettingsManager.excludeFilters    = excludeFilters;
+        SettingsManager.allowedExtensions = allowedExtensions;
+        SettingsManager.deniedExtensions  = deniedExtensions;
+        SettingsManager.minFileSize       = minFileSize;
+        SettingsManager.maxFileSize       = maxFileSize;
+        saveSettings();
+    }
+    
+    /**
+     * Parses a size setting, treating anything that is not a number as no limit.
+     */
+    private static long parseSize(String size) {
+        try {
+            return Long.parseLong(size.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+    
     public static boolean hasApiKey() {
         return !apiKey.isEmpty();
     }
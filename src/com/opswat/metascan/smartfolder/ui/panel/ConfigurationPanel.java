@@ -9,6 +9,7 @@ import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import javax.swing.SwingUtilities;
 import javax.swing.table.DefaultTableModel;
 
 /**
@@ -45,9 +46,22 @@ public class ConfigurationPanel extends javax.swing.JPanel {
      * This will classify the file as "Unknown" by default, this value will be
      * updated as results are found
      * 
+     * This may be called from any <code>Thread</code>; the table is always
+     * updated on the event dispatch thread.
+     * 
      * @param session 
      */
-    public void pushSessionToLog(ScanSession session) {
+    public void pushSessionToLog(final ScanSession session) {
+        if (!SwingUtilities.isEventDispatchThread()) {
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    pushSessionToLog(session);
+                }
+            });
+            return;
+        }
+        
         loggedSessions.add(session);
         
         DefaultTableModel dtm = (DefaultTableModel) logTable.getModel();
@@ -64,7 +78,17 @@ public class ConfigurationPanel extends javax.swing.JPanel {
      * 
      * @param session the <code>ScanSession</code> in question
      */
-    public void updateSessionStatus(ScanSession session, String status) {
+    public void updateSessionStatus(final ScanSession session, final String status) {
+        if (!SwingUtilities.isEventDispatchThread()) {
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    updateSessionStatus(session, status);
+                }
+            });
+            return;
+        }
+        
         Integer rowID = loggedSessions.indexOf(session);
         
         if (rowID >= 0) {
@@ -79,7 +103,17 @@ public class ConfigurationPanel extends javax.swing.JPanel {
      * 
      * @param session the <code>ScanSession</code> in question
      */
-    public void updateSessionAction(ScanSession session, String action) {
+    public void updateSessionAction(final ScanSession session, final String action) {
+        if (!SwingUtilities.isEventDispatchThread()) {
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    updateSessionAction(session, action);
+                }
+            });
+            return;
+        }
+        
         Integer rowID = loggedSessions.indexOf(session);
         
         if (rowID >= 0) {
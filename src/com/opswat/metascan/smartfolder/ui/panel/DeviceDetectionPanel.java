@@ -2,6 +2,7 @@ package com.opswat.metascan.smartfolder.ui.panel;
 
 import com.opswat.metascan.smartfolder.devicedetection.DeviceDetectionManager;
 import com.opswat.metascan.smartfolder.ScanManager;
+import com.opswat.metascan.smartfolder.ScanPriority;
 import com.opswat.metascan.smartfolder.settings.SettingsManager;
 import java.io.File;
 import javax.swing.filechooser.FileSystemView;
@@ -201,7 +202,7 @@ public class DeviceDetectionPanel extends javax.swing.JPanel {
         DefaultTableModel dtm = (DefaultTableModel) deviceTable.getModel();
         
         for (int i = 0; i < dtm.getRowCount(); i++)
-            ScanManager.pushDirectoryForUpload((File) dtm.getValueAt(i, 0), true);
+            ScanManager.pushDirectoryForUpload((File) dtm.getValueAt(i, 0), ScanPriority.DEVICE_SCAN, true);
     }//GEN-LAST:event_rescanAllButtonActionPerformed
 
     /**
@@ -218,7 +219,7 @@ public class DeviceDetectionPanel extends javax.swing.JPanel {
         int selectedRow = deviceTable.getSelectedRow();
         
         if (selectedRow >= 0)
-            ScanManager.pushDirectoryForUpload((File) dtm.getValueAt(selectedRow, 0), true);
+            ScanManager.pushDirectoryForUpload((File) dtm.getValueAt(selectedRow, 0), ScanPriority.DEVICE_SCAN, true);
     }//GEN-LAST:event_rescanSelectedButtonActionPerformed
 
     // Variables declaration - do not modify//GEN-BEGIN:variables
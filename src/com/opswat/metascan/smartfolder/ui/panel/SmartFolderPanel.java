@@ -2,17 +2,37 @@ package com.opswat.metascan.smartfolder.ui.panel;
 
 import com.opswat.metascan.smartfolder.ScanManager;
 import com.opswat.metascan.smartfolder.DirectoryMonitor;
+import com.opswat.metascan.smartfolder.MonitoringStrategy;
+import com.opswat.metascan.smartfolder.RegistrationProgress;
+import com.opswat.metascan.smartfolder.ScanPriority;
+import com.opswat.metascan.smartfolder.WatchBudget;
+import com.opswat.metascan.smartfolder.settings.SettingsManager;
 import java.awt.datatransfer.DataFlavor;
 import java.awt.datatransfer.Transferable;
 import java.awt.datatransfer.UnsupportedFlavorException;
 import java.awt.dnd.DnDConstants;
 import java.awt.dnd.DropTarget;
 import java.awt.dnd.DropTargetDropEvent;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import javax.swing.ButtonGroup;
 import javax.swing.JFileChooser;
+import javax.swing.JPopupMenu;
+import javax.swing.JRadioButtonMenuItem;
+import javax.swing.ProgressMonitor;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
 import javax.swing.tree.DefaultMutableTreeNode;
 import javax.swing.tree.DefaultTreeModel;
 import javax.swing.tree.TreePath;
@@ -34,48 +54,80 @@ public class SmartFolderPanel extends javax.swing.JPanel {
         
         smartFolderTree.getSelectionModel().setSelectionMode(TreeSelectionModel.SINGLE_TREE_SELECTION);
         initDragAndDrop();
+        initStrategyMenu();
     }
     
     /**
      * Sets the directories that are displayed in the <code>JTree</code>.
      * 
      * The specified list of directories will be sorted to determine the best way
-     * to display them in tree form.
+     * to display them in tree form. This may be called from any <code>Thread</code>;
+     * the <code>JTree</code> is always updated on the event dispatch thread.
      * 
      * @param directories the directories currently being monitored.
      */
-    public void updateMonitoredDirectoriesTree(ArrayList<File> directories) {
-        ArrayList<File> unsortedDirectories = new ArrayList(directories);
-        ArrayList<File> sortedDirectories   = new ArrayList();
+    public void updateMonitoredDirectoriesTree(final ArrayList<File> directories) {
+        if (!SwingUtilities.isEventDispatchThread()) {
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    updateMonitoredDirectoriesTree(directories);
+                }
+            });
+            return;
+        }
+        
+        ArrayList<File> sortedDirectories = new ArrayList(directories);
         
         rescanSelectedButton.setEnabled(directories.size() > 0);
         rescanAllButton.setEnabled(directories.size() > 0);
         
         // sort the directory paths by ascending length. This sorted list will
         // be used to build the tree in the most consolidated way possible
-        while (!unsortedDirectories.isEmpty()) {
-            int lowIndex = 0;
-            for (int i = 0; i < unsortedDirectories.size(); i++)
-                if (unsortedDirectories.get(i).getPath().length() < unsortedDirectories.get(lowIndex).getPath().length())
-                    lowIndex = i;
-            sortedDirectories.add(unsortedDirectories.remove(lowIndex));
+        Collections.sort(sortedDirectories, new Comparator<File>() {
+            @Override
+            public int compare(File first, File second) {
+                return first.getPath().length() - second.getPath().length();
+            }
+        });
+        
+        // index the directories by the path of their parent, so that the children
+        // of each directory can be found without searching the whole list
+        HashMap<String, ArrayList<File>> childDirectories = new HashMap();
+        for (File directory : sortedDirectories) {
+            ArrayList<File> siblings = childDirectories.get(directory.getParent());
+            if (siblings == null) {
+                siblings = new ArrayList();
+                childDirectories.put(directory.getParent(), siblings);
+            }
+            siblings.add(directory);
         }
         
         // the root node
         DefaultMutableTreeNode rootNode = new DefaultMutableTreeNode("SmartFolders");
         
-        // go through the list of directories and build a tree of the directory
-        // structure of the monitored directories
-        while (!sortedDirectories.isEmpty()) {
-            File directory = sortedDirectories.remove(0);
-            DefaultMutableTreeNode dmtn = getDirectoryNode(directory, sortedDirectories);
-            dmtn.setUserObject(directory);
-            
-            rootNode.add(dmtn);
+        // every directory whose parent is not monitored starts a new branch, which
+        // holds the directory structure of the monitored directories beneath it
+        HashSet<String> monitoredPaths = new HashSet();
+        for (File directory : sortedDirectories)
+            monitoredPaths.add(directory.getPath());
+        
+        for (File directory : sortedDirectories) {
+            if (directory.getParent() == null || !monitoredPaths.contains(directory.getParent())) {
+                DefaultMutableTreeNode dmtn = getDirectoryNode(directory, childDirectories);
+                dmtn.setUserObject(directory);
+                
+                rootNode.add(dmtn);
+            }
         }
         
         // add the nodes to the tree
         smartFolderTree.setModel(new DefaultTreeModel(rootNode));
+        
+        // report how much of the watch budget is in use
+        int watchKeysInUse = WatchBudget.getWatchKeysInUse();
+        smartFolderTree.setToolTipText("Watching " + watchKeysInUse + " of " + WatchBudget.getMaxWatchKeys() + " directories, polling " + 
+                (directories.size() - watchKeysInUse) + " (" + WatchBudget.getDemotedSubtreeCount() + " over budget)");
     }
     
     /**
@@ -85,20 +137,21 @@ public class SmartFolderPanel extends javax.swing.JPanel {
      * under the specified directory in the file system.
      * 
      * @param directory the directory for which a node should be built
-     * @param otherDirectories a list of the remaining monitored directories
+     * @param childDirectories a mapping from the path of each directory to its
+     * monitored sub-directories
      * 
      * @return a node representation of the current directory with children representing
      * sub-directories
      */
-    private DefaultMutableTreeNode getDirectoryNode(File directory, ArrayList<File> otherDirectories) {
+    private DefaultMutableTreeNode getDirectoryNode(File directory, HashMap<String, ArrayList<File>> childDirectories) {
         DefaultMutableTreeNode dmtn = new DefaultMutableTreeNode(directory.getName());
         
-        // loop through the remaining directories and find those whose parent is
-        // the specified directory. For each of these children, recursively build
-        // their node. Add that node to this one
-        for (int i = otherDirectories.size() - 1; i >= 0; i--)
-            if (otherDirectories.get(i).getParent().equals(directory.getPath()))
-                dmtn.add(getDirectoryNode(otherDirectories.remove(i), otherDirectories));
+        // for each directory whose parent is the specified directory, recursively
+        // build its node and add that node to this one
+        ArrayList<File> children = childDirectories.get(directory.getPath());
+        if (children != null)
+            for (int i = children.size() - 1; i >= 0; i--)
+                dmtn.add(getDirectoryNode(children.get(i), childDirectories));
         
         return dmtn;
     }
@@ -180,7 +233,7 @@ public class SmartFolderPanel extends javax.swing.JPanel {
                             if (object instanceof File) {
                                 File source = (File) object;
                                 if (source.isDirectory()) {
-                                    DirectoryMonitor.registerDirectory(source);
+                                    registerDirectoryInBackground(source);
                                 }
                             }
                         }
@@ -193,6 +246,175 @@ public class SmartFolderPanel extends javax.swing.JPanel {
         });
     }
 
+    /**
+     * Initializes the menu used to choose the <code>MonitoringStrategy</code> of
+     * a SmartFolder.
+     * 
+     * Right-clicking a top-level SmartFolder in the <code>JTree</code> will show
+     * the menu.
+     */
+    private void initStrategyMenu() {
+        final JPopupMenu strategyMenu = new JPopupMenu();
+        final JRadioButtonMenuItem watchItem = new JRadioButtonMenuItem("Watch for changes");
+        final JRadioButtonMenuItem pollItem = new JRadioButtonMenuItem("Poll for changes");
+        ButtonGroup strategyGroup = new ButtonGroup();
+        strategyGroup.add(watchItem);
+        strategyGroup.add(pollItem);
+        strategyMenu.add(watchItem);
+        strategyMenu.add(pollItem);
+        
+        final File[] menuSmartFolder = new File[1];    // the SmartFolder the menu was shown for
+        
+        watchItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                changeStrategyInBackground(menuSmartFolder[0], MonitoringStrategy.WATCH);
+            }
+        });
+        pollItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                changeStrategyInBackground(menuSmartFolder[0], MonitoringStrategy.POLL);
+            }
+        });
+        
+        smartFolderTree.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mousePressed(MouseEvent e) {
+                showMenu(e);
+            }
+            
+            @Override
+            public void mouseReleased(MouseEvent e) {
+                showMenu(e);
+            }
+            
+            private void showMenu(MouseEvent e) {
+                if (!e.isPopupTrigger())
+                    return;
+                
+                // only the top-level SmartFolders have a strategy of their own
+                TreePath path = smartFolderTree.getPathForLocation(e.getX(), e.getY());
+                if (path == null || path.getPathCount() != 2)
+                    return;
+                
+                smartFolderTree.setSelectionPath(path);
+                menuSmartFolder[0] = (File) ((DefaultMutableTreeNode) path.getLastPathComponent()).getUserObject();
+                
+                if (SettingsManager.getMonitoringStrategy(menuSmartFolder[0]) == MonitoringStrategy.POLL)
+                    pollItem.setSelected(true);
+                else
+                    watchItem.setSelected(true);
+                strategyMenu.show(smartFolderTree, e.getX(), e.getY());
+            }
+        });
+    }
+
+    /**
+     * Registers a directory without blocking the user interface.
+     * 
+     * The directory is registered by a <code>RegistrationWorker</code>, which
+     * shows a cancellable <code>ProgressMonitor</code> if the registration takes
+     * a while.
+     * 
+     * @param directory the directory to register
+     */
+    private void registerDirectoryInBackground(File directory) {
+        new RegistrationWorker(directory, null).execute();
+    }
+    
+    /**
+     * Changes the <code>MonitoringStrategy</code> of a SmartFolder without
+     * blocking the user interface.
+     * 
+     * The SmartFolder is registered again with the new strategy by a
+     * <code>RegistrationWorker</code>, just like a new directory.
+     * 
+     * @param smartFolder the top-level directory
+     * @param strategy the new strategy
+     */
+    private void changeStrategyInBackground(File smartFolder, MonitoringStrategy strategy) {
+        if (SettingsManager.getMonitoringStrategy(smartFolder) != strategy)
+            new RegistrationWorker(smartFolder, strategy).execute();
+    }
+    
+    /**
+     * Registers a directory in the background.
+     * 
+     * While the directory is being registered, a <code>Timer</code> reports the
+     * number of directories and <code>File</code>s found (and the rate at which
+     * they are found) to a <code>ProgressMonitor</code>, and every second shows
+     * the directories registered so far in the <code>JTree</code>, rather than
+     * updating it for each directory.
+     */
+    private class RegistrationWorker extends SwingWorker<Void, Void> {
+        
+        /**
+         * The interval (in milliseconds) at which the progress is reported.
+         */
+        private static final int PROGRESS_INTERVAL_MILLIS = 250;
+        
+        /**
+         * The number of progress reports between two updates of the <code>JTree</code>.
+         */
+        private static final int TREE_UPDATE_REPORTS = 4;
+        
+        private final File directory;
+        private final MonitoringStrategy strategy;    // the new strategy, or null to register a new directory
+        private final RegistrationProgress progress = new RegistrationProgress();
+        private final ProgressMonitor progressMonitor;
+        private final Timer progressTimer;
+        private int reports = 0;
+        
+        RegistrationWorker(File directory, MonitoringStrategy strategy) {
+            this.directory = directory;
+            this.strategy = strategy;
+            
+            progressMonitor = new ProgressMonitor(SmartFolderPanel.this, "Registering " + directory.getPath(), "", 0, 1000);
+            progressTimer = new Timer(PROGRESS_INTERVAL_MILLIS, new ActionListener() {
+                @Override
+                public void actionPerformed(ActionEvent e) {
+                    reportProgress();
+                }
+            });
+            progressTimer.start();
+        }
+        
+        @Override
+        protected Void doInBackground() {
+            if (strategy != null)
+                DirectoryMonitor.setMonitoringStrategy(directory, strategy, progress);
+            else
+                DirectoryMonitor.registerDirectory(directory, progress);
+            return null;
+        }
+        
+        @Override
+        protected void done() {
+            progressTimer.stop();
+            progressMonitor.close();
+        }
+        
+        /**
+         * Reports the progress to the <code>ProgressMonitor</code>, cancelling the
+         * registration if the user asked to.
+         */
+        private void reportProgress() {
+            if (progressMonitor.isCanceled()) {
+                progress.cancel();
+                progressTimer.stop();
+                return;
+            }
+            
+            progressMonitor.setNote(String.format("%,d directories, %,d files (%,.0f per second)",
+                    progress.getDirectoriesRegistered(), progress.getFilesDiscovered(), progress.getRate()));
+            progressMonitor.setProgress((int) (progress.getFractionDone() * 999));
+            
+            if (++reports % TREE_UPDATE_REPORTS == 0)
+                updateMonitoredDirectoriesTree(DirectoryMonitor.getRegisteredDirectories());
+        }
+    }
+
     @SuppressWarnings("unchecked")
     // <editor-fold defaultstate="collapsed" desc="Generated Code">//GEN-BEGIN:initComponents
     private void initComponents() {
@@ -319,7 +541,7 @@ public class SmartFolderPanel extends javax.swing.JPanel {
         jfc.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
         
         if (jfc.showOpenDialog(this) == JFileChooser.APPROVE_OPTION)
-            DirectoryMonitor.registerDirectory(jfc.getSelectedFile());
+            registerDirectoryInBackground(jfc.getSelectedFile());
     }//GEN-LAST:event_monitorNewDirectoryButtonActionPerformed
 
     /**
@@ -327,14 +549,20 @@ public class SmartFolderPanel extends javax.swing.JPanel {
      * 
      * Sends the specified <code>File</code> to the <code>ScanManager</code> this
      * will bypass any existing information about when the <code>File</code> was
-     * last scanned.
+     * last scanned. A directory is walked and each of its <code>File</code>s is
+     * sent instead.
      * 
      * @param evt 
      */
     private void rescanSelectedButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_rescanSelectedButtonActionPerformed
         File selectedSmartFolder = getSelectedSmartFolder();
-        if (selectedSmartFolder != null)
-            ScanManager.pushFileForUpload(selectedSmartFolder, true);
+        if (selectedSmartFolder == null)
+            return;
+        
+        if (selectedSmartFolder.isDirectory())
+            ScanManager.pushDirectoryForUpload(selectedSmartFolder, ScanPriority.USER_DIRECTORY, true);
+        else if (selectedSmartFolder.isFile())
+            ScanManager.pushFileForUpload(selectedSmartFolder, ScanPriority.INTERACTIVE, true);
     }//GEN-LAST:event_rescanSelectedButtonActionPerformed
 
     /**
@@ -349,7 +577,7 @@ public class SmartFolderPanel extends javax.swing.JPanel {
     private void rescanAllButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_rescanAllButtonActionPerformed
         File[] topLevelSmartFolders = getTopLevelSmartFolders();
         for (File smartFolder : topLevelSmartFolders)
-            ScanManager.pushDirectoryForUpload(smartFolder, true);
+            ScanManager.pushDirectoryForUpload(smartFolder, ScanPriority.RESCAN, true);
     }//GEN-LAST:event_rescanAllButtonActionPerformed
 
     // Variables declaration - do not modify//GEN-BEGIN:variables
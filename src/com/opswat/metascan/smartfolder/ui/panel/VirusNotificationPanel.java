@@ -9,6 +9,7 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.HashMap;
 import javax.swing.DefaultCellEditor;
+import javax.swing.SwingUtilities;
 import javax.swing.table.DefaultTableModel;
 
 /**
@@ -36,9 +37,22 @@ public class VirusNotificationPanel extends javax.swing.JPanel {
      * If this <code>Panel</code> is not currently being displayed, the button
      * for this <code>Panel</code> will be flagged to notify the user.
      * 
+     * This may be called from any <code>Thread</code>; the table is always
+     * updated on the event dispatch thread.
+     * 
      * @param session the <code>ScanSession</code> that was suspicious
      */
-    public void pushVirusToTable(ScanSession session) {
+    public void pushVirusToTable(final ScanSession session) {
+        if (!SwingUtilities.isEventDispatchThread()) {
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    pushVirusToTable(session);
+                }
+            });
+            return;
+        }
+        
         DefaultTableModel dtm = (DefaultTableModel) virusNotificationTable.getModel();
         pathToScanSession.put(session.getFile().getPath(), session);
         
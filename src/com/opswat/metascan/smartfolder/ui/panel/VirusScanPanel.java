@@ -1,6 +1,7 @@
 package com.opswat.metascan.smartfolder.ui.panel;
 
 import com.opswat.metascan.smartfolder.ScanManager;
+import com.opswat.metascan.smartfolder.ScanPriority;
 import java.awt.datatransfer.DataFlavor;
 import java.awt.datatransfer.Transferable;
 import java.awt.datatransfer.UnsupportedFlavorException;
@@ -50,9 +51,9 @@ public class VirusScanPanel extends javax.swing.JPanel {
                             if (object instanceof File) {
                                 File source = (File) object;
                                 if (source.isDirectory())
-                                    ScanManager.pushDirectoryForUpload(source, true);
+                                    ScanManager.pushDirectoryForUpload(source, ScanPriority.USER_DIRECTORY, true);
                                 else if (source.isFile())
-                                    ScanManager.pushFileForUpload(source, true);
+                                    ScanManager.pushFileForUpload(source, ScanPriority.INTERACTIVE, true);
                             }
                         }
                     }
@@ -198,9 +199,9 @@ public class VirusScanPanel extends javax.swing.JPanel {
         File file = new File(fileOrDirectoryField.getText());
         if (file.exists())
             if (file.isDirectory())
-                ScanManager.pushDirectoryForUpload(file, true);
+                ScanManager.pushDirectoryForUpload(file, ScanPriority.USER_DIRECTORY, true);
             if (file.isFile())
-                ScanManager.pushFileForUpload(file, true);
+                ScanManager.pushFileForUpload(file, ScanPriority.INTERACTIVE, true);
         
         fileOrDirectoryField.setText("");
     }//GEN-LAST:event_confirmButtonActionPerformed
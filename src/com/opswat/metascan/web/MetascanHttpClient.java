@@ -0,0 +1,176 @@
+package com.opswat.metascan.web;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Sends every HTTP request made to the Metascan Online server.
+ * 
+ * Connections are kept alive and shared between requests to the same host, so
+ * that most requests do not have to open a new connection or repeat the TLS
+ * handshake. A connection can only be reused once the response to the previous
+ * request has been completely read and closed, which the
+ * <code>MetascanHttpClient</code> always does after handing the response to
+ * its <code>ResponseHandler</code>.<br><br>
+ * 
+ * The client can be tuned with the following system properties:<ul>
+ * <li><b>smartfolder.http.maxConnections: </b> the number of idle connections to keep
+ *                                              open for each host (8 by default)</li>
+ * <li><b>smartfolder.http.connectTimeout: </b> the time (in milliseconds) allowed to
+ *                                              open a connection (15 seconds by default)</li>
+ * <li><b>smartfolder.http.readTimeout: </b>    the time (in milliseconds) allowed to
+ *                                              wait for a response (60 seconds by default)</li></ul>
+ * 
+ * @author Tristan Currens
+ * @see MetascanOnlineInterface
+ */
+public class MetascanHttpClient {
+    
+    /**
+     * The time (in milliseconds) allowed to open a connection.
+     */
+    private static final int CONNECT_TIMEOUT_MILLIS = Integer.getInteger("smartfolder.http.connectTimeout", 15000);
+    
+    /**
+     * The time (in milliseconds) allowed to wait for data from the server.
+     */
+    private static final int READ_TIMEOUT_MILLIS = Integer.getInteger("smartfolder.http.readTimeout", 60000);
+    
+    /**
+     * The size (in bytes) of the buffer used to discard unread response data.
+     */
+    private static final int DRAIN_BUFFER_SIZE = 8 * 1024;
+    
+    static {
+        // the JDK keeps at most http.maxConnections idle connections per host;
+        // raise the default so that every upload worker can keep its own
+        if (System.getProperty("http.maxConnections") == null)
+            System.setProperty("http.maxConnections", Integer.getInteger("smartfolder.http.maxConnections", 8).toString());
+    }
+    
+    /**
+     * Reads the response to a request.
+     * 
+     * @param <T> the type of value read from the response
+     */
+    public interface ResponseHandler<T> {
+        
+        /**
+         * Reads the response to a request.
+         * 
+         * The body does not need to be read completely or closed.
+         * 
+         * @param responseCode the HTTP status code of the response
+         * @param body the body of the response, or <code>null</code> if it has none
+         * @return the value read from the response
+         * @throws IOException if the response could not be read
+         */
+        T handle(int responseCode, InputStream body) throws IOException;
+    }
+    
+    /**
+     * The body of a request.
+     */
+    public interface RequestBody {
+        
+        /**
+         * Gets the number of bytes that <code>writeTo</code> will write.
+         * 
+         * @return the length of the body
+         * @throws IOException if the length could not be determined
+         */
+        long getContentLength() throws IOException;
+        
+        /**
+         * Writes exactly <code>getContentLength()</code> bytes to the server.
+         * 
+         * @param out the stream to write to
+         * @throws IOException if the body could not be written
+         */
+        void writeTo(OutputStream out) throws IOException;
+    }
+    
+    /**
+     * Sends a GET request.
+     * 
+     * @param <T> the type of value read from the response
+     * @param url the location to request
+     * @param handler reads the response
+     * @param headers the request headers, as alternating names and values
+     * @return the value returned by the <code>ResponseHandler</code>
+     * @throws IOException if the request could not be completed
+     */
+    public static <T> T get(String url, ResponseHandler<T> handler, String... headers) throws IOException {
+        return execute("GET", url, null, handler, headers);
+    }
+    
+    /**
+     * Sends a POST request.
+     * 
+     * @param <T> the type of value read from the response
+     * @param url the location to request
+     * @param body the body of the request
+     * @param handler reads the response
+     * @param headers the request headers, as alternating names and values
+     * @return the value returned by the <code>ResponseHandler</code>
+     * @throws IOException if the request could not be completed
+     */
+    public static <T> T post(String url, RequestBody body, ResponseHandler<T> handler, String... headers) throws IOException {
+        return execute("POST", url, body, handler, headers);
+    }
+    
+    /**
+     * Sends a request and hands the response to the specified <code>ResponseHandler</code>.
+     * 
+     * Whatever the handler leaves unread is discarded and the response is closed,
+     * so that the connection can be reused by the next request.
+     */
+    private static <T> T execute(String method, String url, RequestBody body, ResponseHandler<T> handler, String... headers) throws IOException {
+        HttpURLConnection urlConnection = (HttpURLConnection) new URL(url).openConnection();
+        
+        urlConnection.setRequestMethod(method);
+        urlConnection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        urlConnection.setReadTimeout(READ_TIMEOUT_MILLIS);
+        urlConnection.setDoInput(true);
+        for (int i = 0; i + 1 < headers.length; i += 2)
+            urlConnection.addRequestProperty(headers[i], headers[i + 1]);
+        
+        if (body != null) {
+            urlConnection.setDoOutput(true);
+            urlConnection.setFixedLengthStreamingMode(body.getContentLength());
+            try (OutputStream out = urlConnection.getOutputStream()) {
+                body.writeTo(out);
+            }
+        }
+        
+        int responseCode = urlConnection.getResponseCode();
+        InputStream responseBody = responseCode >= 400 ? urlConnection.getErrorStream() : urlConnection.getInputStream();
+        
+        try {
+            return handler.handle(responseCode, responseBody);
+        } finally {
+            if (responseBody != null)
+                drainAndClose(responseBody);
+        }
+    }
+    
+    /**
+     * Reads the rest of a response and closes it.
+     * 
+     * @param responseBody the body of the response
+     */
+    private static void drainAndClose(InputStream responseBody) {
+        try {
+            byte[] buffer = new byte[DRAIN_BUFFER_SIZE];
+            while (responseBody.read(buffer) != -1);
+        } catch (IOException e) {
+        } finally {
+            try {
+                responseBody.close();
+            } catch (IOException e) {}
+        }
+    }
+}
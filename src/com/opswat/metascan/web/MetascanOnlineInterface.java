@@ -4,64 +4,170 @@ import com.opswat.metascan.smartfolder.ScanResult;
 import com.opswat.metascan.smartfolder.ScanSession;
 import com.opswat.metascan.smartfolder.settings.SettingsManager;
 import com.opswat.metascan.smartfolder.ui.UserInterfaceManager;
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URL;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.JSONValue;
 
 /**
  * Handles communication between the program and the Metascan Online server.
  * 
- * This is used to upload <code>File</code>s and to download results.
- *
+ * This is used to upload <code>File</code>s and to download results. All
+ * requests are sent through the <code>MetascanHttpClient</code>, and all
+ * responses are decoded by the <code>ScanResultDecoder</code>.
+ * 
  * @author Tristan Currens
+ * @see MetascanHttpClient
  */
 public class MetascanOnlineInterface {
     
     /**
      * The location of the API on the Metascan server.
+     * 
+     * This can be pointed at a different server (such as a local stand-in used
+     * for testing) by setting the <code>smartfolder.api.url</code> system property.
+     */
+    private static final String API_URL_BASE = System.getProperty("smartfolder.api.url", "https://api.metascan-online.com/v1");
+    
+    /**
+     * The location used to upload <code>File</code>s and download their results.
+     */
+    private static final String SCAN_REQUEST_URL_BASE = API_URL_BASE + "/file";
+    
+    /**
+     * The location used to look up the results of previously scanned <code>File</code>s
+     * by their digest.
+     */
+    private static final String HASH_REQUEST_URL_BASE = API_URL_BASE + "/hash";
+    
+    /**
+     * The location used to download the results of many scans at once.
+     * 
+     * This can be changed with the <code>smartfolder.api.batchUrl</code> system property.
+     */
+    private static final String BATCH_REQUEST_URL = System.getProperty("smartfolder.api.batchUrl", SCAN_REQUEST_URL_BASE + "/batch");
+    
+    /**
+     * Stores whether or not the server accepts batched result downloads. This
+     * is cleared the first time the server answers a batch request with an
+     * indication that it does not support it.
+     */
+    private static volatile boolean batchDownloadSupported = true;
+    
+    /**
+     * The size (in bytes) of the buffer used to stream <code>File</code>s to the server.
+     */
+    private static final int UPLOAD_BUFFER_SIZE = 64 * 1024;
+    
+    /**
+     * A direct buffer for each uploading <code>Thread</code>.
+     * 
+     * Uploads are streamed through this buffer, so memory use stays the same
+     * no matter how large the uploaded <code>File</code> is.
      */
-    private static final String SCAN_REQUEST_URL_BASE = "https://api.metascan-online.com/v1/file";
+    private static final ThreadLocal<ByteBuffer> UPLOAD_BUFFER = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(UPLOAD_BUFFER_SIZE);
+        }
+    };
     
     /**
-     * Uploads a session to the Metascan Online Server and returns the resulting 
+     * Gets the name of the host that serves the Metascan Online API.
+     * 
+     * @return the host name
+     */
+    public static String getApiHost() {
+        try {
+            return new URL(API_URL_BASE).getHost();
+        } catch (IOException e) {
+            return API_URL_BASE;
+        }
+    }
+    
+    /**
+     * Looks up the results of a previous scan of the session's <code>File</code>
+     * by its SHA-256 digest.
+     * 
+     * This only sends the digest to the Metascan Online server, so it is much
+     * cheaper than uploading the <code>File</code> itself.
+     * 
+     * @param session the <code>ScanSession</code> to look up; its digest must be set
+     * @return the known results of the scan, or <code>null</code> if the server
+     * has never scanned the <code>File</code> or could not be reached
+     * @throws ApiKeyRejectedException if the server rejected the API key, in
+     * which case the <code>File</code> must not be uploaded either
+     */
+    public static ScanResult lookupHash(final ScanSession session) throws ApiKeyRejectedException {
+        if (session.getDigest() == null)
+            return null;
+        
+        try {
+            return MetascanHttpClient.get(HASH_REQUEST_URL_BASE + "/" + session.getDigest(), new MetascanHttpClient.ResponseHandler<ScanResult>() {
+                @Override
+                public ScanResult handle(int responseCode, InputStream body) throws IOException {
+                    if (responseCode == 200) {
+                        ScanResultDecoder decoder = ScanResultDecoder.decode(body);
+                        ScanResult scanResult = decoder == null ? null : decoder.getScanResult();
+                        
+                        // unknown digests are answered with {"<digest>": "Not Found"}
+                        if (scanResult != null) {
+                            if (decoder.getDataID() != null)
+                                session.setDataID(decoder.getDataID());
+                            return scanResult;
+                        }
+                    } else if (responseCode == 401) {
+                        rejectApiKey(null, null);
+                        throw new ApiKeyRejectedException();
+                    }
+                    return null;
+                }
+            }, "apikey", SettingsManager.getApiKey());
+        } catch (ApiKeyRejectedException e) {
+            throw e;
+        } catch (IOException | RuntimeException e) {}
+        
+        return null;
+    }
+    
+    /**
+     * Uploads a session to the Metascan Online Server and returns the resulting
      * data ID. This data ID will be used to fetch the results of the data.
      * 
      * @param session the <code>ScanSession</code> to upload
      * @return the resulting data ID
      */
-    public static String uploadSession(ScanSession session) {
+    public static String uploadSession(final ScanSession session) {
         File file = session.getFile();
         
         try {
-            URL url = new URL(SCAN_REQUEST_URL_BASE);
-            HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
-            
-            urlConnection.setRequestMethod("POST");
-            urlConnection.setDoInput(true);
-            urlConnection.setDoOutput(true);
-            
-            urlConnection.addRequestProperty("apikey", SettingsManager.getApiKey());
-            urlConnection.addRequestProperty("filename", file.getName());
-            
-            urlConnection.getOutputStream().write(Files.readAllBytes(file.toPath()));
-            
-            if (urlConnection.getResponseCode() == 200) {
-                String returnData = new BufferedReader(new InputStreamReader(urlConnection.getInputStream())).readLine();
-                JSONObject json = (JSONObject) JSONValue.parse(returnData);
-                
-                return json.get("data_id").toString();
-            } else if (urlConnection.getResponseCode() == 401){
-                UserInterfaceManager.getSmartFolderFrame().getConfigurationPanel().updateSessionStatus(session, "Unable to Upload");
-                UserInterfaceManager.notifyInvalidAPIKey();
-                SettingsManager.setApiKey("");
-            }
-        } catch (IOException e) {}
+            return MetascanHttpClient.post(SCAN_REQUEST_URL_BASE, new FileBody(file), new MetascanHttpClient.ResponseHandler<String>() {
+                @Override
+                public String handle(int responseCode, InputStream body) throws IOException {
+                    if (responseCode == 200) {
+                        ScanResultDecoder decoder = ScanResultDecoder.decode(body);
+                        
+                        return decoder == null ? null : decoder.getDataID();
+                    } else if (responseCode == 401) {
+                        rejectApiKey(session, "Unable to Upload");
+                    }
+                    return null;
+                }
+            }, "apikey", SettingsManager.getApiKey(), "filename", file.getName());
+        } catch (IOException | RuntimeException e) {}
         
         return null;
     }
@@ -73,27 +179,177 @@ public class MetascanOnlineInterface {
      * @param ScanSession the <code>ScanSession</code> to download results for
      * @return the current results of the scan
      */
-    public static ScanResult downloadResults(ScanSession session) {
+    public static ScanResult downloadResults(final ScanSession session) {
+        try {
+            return MetascanHttpClient.get(SCAN_REQUEST_URL_BASE + "/" + session.getDataID(), new MetascanHttpClient.ResponseHandler<ScanResult>() {
+                @Override
+                public ScanResult handle(int responseCode, InputStream body) throws IOException {
+                    if (responseCode == 200) {
+                        ScanResultDecoder decoder = ScanResultDecoder.decode(body);
+                        return decoder == null ? null : decoder.getScanResult();
+                    } else if (responseCode == 401) {
+                        rejectApiKey(session, "Unable to Download");
+                    }
+                    return null;
+                }
+            }, "apikey", SettingsManager.getApiKey(), "data_id", session.getDataID());
+        } catch (IOException | RuntimeException e) {}
+        
+        return null;
+    }
+    
+    /**
+     * Checks if the Metascan Online server accepts batched result downloads.
+     * 
+     * @return <code>true</code> if it does (or if it has not been tried yet);
+     * <code>false</code> otherwise
+     */
+    public static boolean isBatchDownloadSupported() {
+        return batchDownloadSupported;
+    }
+    
+    /**
+     * Downloads the results of many scans from the Metascan Online Server in
+     * a single request.
+     * 
+     * The data IDs of the sessions are sent as <code>{"data_id": [...]}</code>,
+     * and the server answers with an array containing one result object (with
+     * its <code>data_id</code>) for each scan it knows about.
+     * 
+     * @param sessions the <code>ScanSession</code>s to download results for
+     * @return a mapping from data ID to the current results of that scan, or
+     * <code>null</code> if the results could not be downloaded
+     */
+    public static Map<String, ScanResult> downloadResults(List<ScanSession> sessions) {
+        if (!batchDownloadSupported)
+            return null;
+        
+        JSONArray dataIDs = new JSONArray();
+        for (ScanSession session : sessions)
+            dataIDs.add(session.getDataID());
+        
+        JSONObject request = new JSONObject();
+        request.put("data_id", dataIDs);
+        
         try {
-            URL url = new URL(SCAN_REQUEST_URL_BASE + "\\" + session.getDataID());
-            
-            HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
-            
-            urlConnection.setRequestMethod("GET");
-            urlConnection.setDoInput(true);
-            urlConnection.addRequestProperty("apikey", SettingsManager.getApiKey());
-            urlConnection.addRequestProperty("data_id", session.getDataID());
-            
-            if (urlConnection.getResponseCode() == 200) {
-                String returnData = new BufferedReader(new InputStreamReader(urlConnection.getInputStream())).readLine();
+            return MetascanHttpClient.post(BATCH_REQUEST_URL, new JSONBody(request), new MetascanHttpClient.ResponseHandler<Map<String, ScanResult>>() {
+                @Override
+                public Map<String, ScanResult> handle(int responseCode, InputStream body) throws IOException {
+                    if (responseCode == 200) {
+                        ScanResultDecoder decoder = ScanResultDecoder.decode(body);
+                        if (decoder == null || !decoder.isBatch())
+                            return null;
+                        
+                        return decoder.getScanResults();
+                    } else if (responseCode == 401) {
+                        rejectApiKey(null, null);
+                    } else if (responseCode == 404 || responseCode == 405 || responseCode == 501) {
+                        batchDownloadSupported = false;
+                    }
+                    return null;
+                }
+            }, "apikey", SettingsManager.getApiKey(), "Content-Type", "application/json");
+        } catch (IOException | RuntimeException e) {}
+        
+        return null;
+    }
+    
+    /**
+     * Handles the server rejecting the current API key.
+     * 
+     * @param session the <code>ScanSession</code> whose request was rejected, or
+     * <code>null</code> if the request was not for a single session
+     * @param status the status to display for the session
+     */
+    private static void rejectApiKey(ScanSession session, String status) {
+        if (session != null)
+            UserInterfaceManager.getSmartFolderFrame().getConfigurationPanel().updateSessionStatus(session, status);
+        UserInterfaceManager.notifyInvalidAPIKey();
+        SettingsManager.setApiKey("");
+    }
+    
+    /**
+     * Thrown when the Metascan Online server rejects the current API key.
+     */
+    public static class ApiKeyRejectedException extends IOException {
+        
+        ApiKeyRejectedException() {
+            super("The API key was rejected");
+        }
+    }
+    
+    /**
+     * A request body that streams a <code>File</code> to the server.
+     */
+    private static class FileBody implements MetascanHttpClient.RequestBody {
+        
+        private final File file;
+        private long contentLength = -1;
+        
+        FileBody(File file) {
+            this.file = file;
+        }
+        
+        @Override
+        public long getContentLength() throws IOException {
+            if (contentLength < 0) {
+                try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    contentLength = fileChannel.size();
+                }
+            }
+            return contentLength;
+        }
+        
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                WritableByteChannel outChannel = Channels.newChannel(out);
+                ByteBuffer buffer = UPLOAD_BUFFER.get();
                 
-                return new ScanResult(returnData);
-            } else if (urlConnection.getResponseCode() == 401){
-                UserInterfaceManager.getSmartFolderFrame().getConfigurationPanel().updateSessionStatus(session, "Unable to Download");
-                UserInterfaceManager.notifyInvalidAPIKey();
-                SettingsManager.setApiKey("");
+                // only send the bytes that were announced, even if the File grows
+                long remaining = getContentLength();
+                while (remaining > 0) {
+                    buffer.clear();
+                    if (remaining < buffer.capacity())
+                        buffer.limit((int) remaining);
+                    
+                    int read = fileChannel.read(buffer);
+                    if (read == -1)
+                        throw new EOFException(file.getPath());
+                    remaining -= read;
+                    
+                    buffer.flip();
+                    while (buffer.hasRemaining())
+                        outChannel.write(buffer);
+                }
             }
-        } catch (IOException e) {}
-        return null;
+        }
+    }
+    
+    /**
+     * A request body containing JSON text.
+     * 
+     * The JSON text is encoded straight to UTF-8 bytes, without building it
+     * as a <code>String</code> first.
+     */
+    private static class JSONBody implements MetascanHttpClient.RequestBody {
+        
+        private final byte[] data;
+        
+        JSONBody(Object json) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            JSONValue.writeJSONString(json, out);
+            this.data = out.toByteArray();
+        }
+        
+        @Override
+        public long getContentLength() {
+            return data.length;
+        }
+        
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            out.write(data);
+        }
     }
 }
@@ -0,0 +1,137 @@
+package com.opswat.metascan.web;
+
+import com.opswat.metascan.smartfolder.ScanResult;
+import com.opswat.metascan.smartfolder.ScanSession;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A <code>ScanSession</code> that is waiting for its results to be downloaded
+ * from the Metascan Online server.
+ * 
+ * Each <code>PendingResult</code> knows when it should next be polled. The time
+ * between polls is chosen from the session's place in the server's queue and
+ * its scan progress: results that are almost done are polled again soon, while
+ * results that are queued behind many other <code>File</code>s, or that are not
+ * making progress, are polled less and less often.
+ * 
+ * @author Tristan Currens
+ * @see SessionDownloader
+ */
+class PendingResult implements Delayed {
+    
+    /**
+     * The amount of time (in milliseconds) to wait before polling a newly uploaded
+     * <code>ScanSession</code> for the first time.
+     */
+    private static final long INITIAL_DELAY_MILLIS = 1000;
+    
+    /**
+     * The shortest amount of time (in milliseconds) to wait between two polls.
+     */
+    private static final long MIN_DELAY_MILLIS = 250;
+    
+    /**
+     * The longest amount of time (in milliseconds) to wait between two polls.
+     */
+    private static final long MAX_DELAY_MILLIS = 60000;
+    
+    /**
+     * The additional amount of time (in milliseconds) to wait for each
+     * <code>File</code> that is ahead of this one in the server's queue.
+     */
+    private static final long DELAY_PER_QUEUE_PLACE_MILLIS = 500;
+    
+    /**
+     * The fraction of each delay that is randomized, so that sessions uploaded
+     * together do not keep being polled together.
+     */
+    private static final double JITTER = 0.2;
+    
+    private final ScanSession session;
+    private final CompletableFuture<ScanSession> completion = new CompletableFuture();
+    private long dueNanos;
+    private long scanStartNanos = -1;
+    private int attempts;
+    private int lastProgress = -1;
+    private int lastPlaceInQueue = Integer.MAX_VALUE;
+    
+    /**
+     * Default constructor.
+     * 
+     * @param session the <code>ScanSession</code> to poll
+     */
+    PendingResult(ScanSession session) {
+        this.session = session;
+        this.dueNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(INITIAL_DELAY_MILLIS);
+    }
+    
+    ScanSession getSession() {
+        return session;
+    }
+    
+    /**
+     * Gets the future that is completed once the session's scan is complete.
+     * 
+     * @return the future
+     */
+    CompletableFuture<ScanSession> getCompletion() {
+        return completion;
+    }
+    
+    /**
+     * Schedules the next poll based on the results of the last one.
+     * 
+     * @param scanResult the results of the last poll, or <code>null</code> if
+     * they could not be downloaded
+     */
+    void reschedule(ScanResult scanResult) {
+        long delay;
+        boolean advanced = scanResult != null && (
+                scanResult.getProgressPercentage() > lastProgress ||
+                scanResult.getPlaceInQueue() < lastPlaceInQueue);
+        
+        if (!advanced) {
+            // nothing changed since the last poll, so back off exponentially
+            attempts++;
+            delay = INITIAL_DELAY_MILLIS << Math.min(attempts, 16);
+        } else if (scanResult.getPlaceInQueue() > 0) {
+            // still waiting on the server; wait longer the further back it is
+            attempts = 0;
+            delay = INITIAL_DELAY_MILLIS + scanResult.getPlaceInQueue() * DELAY_PER_QUEUE_PLACE_MILLIS;
+        } else {
+            // scanning; estimate the time left from the progress made so far and
+            // poll again halfway there
+            attempts = 0;
+            if (scanStartNanos < 0)
+                scanStartNanos = System.nanoTime();
+            
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - scanStartNanos);
+            int progress = Math.max(1, scanResult.getProgressPercentage());
+            delay = elapsed * (100 - progress) / progress / 2;
+        }
+        
+        if (scanResult != null) {
+            lastProgress = scanResult.getProgressPercentage();
+            lastPlaceInQueue = scanResult.getPlaceInQueue();
+        }
+        
+        delay = Math.max(MIN_DELAY_MILLIS, Math.min(MAX_DELAY_MILLIS, delay));
+        delay += (long) (delay * JITTER * (2 * ThreadLocalRandom.current().nextDouble() - 1));
+        
+        dueNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+    }
+    
+    @Override
+    public long getDelay(TimeUnit unit) {
+        return unit.convert(dueNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+    
+    @Override
+    public int compareTo(Delayed other) {
+        long difference = getDelay(TimeUnit.NANOSECONDS) - other.getDelay(TimeUnit.NANOSECONDS);
+        return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+    }
+}
@@ -0,0 +1,267 @@
+package com.opswat.metascan.web;
+
+import com.opswat.metascan.smartfolder.ScanResult;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import org.json.simple.parser.ContentHandler;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Decodes the responses of the Metascan Online server in a single pass.
+ * 
+ * The response is streamed through a <code>JSONParser</code>, and only the
+ * <code>data_id</code> and the four fields of <code>scan_results</code> that a
+ * <code>ScanResult</code> needs are kept. Everything else (such as the per-engine
+ * <code>scan_details</code>, which make up most of a response) is skipped without
+ * building any <code>JSONObject</code>s or <code>JSONArray</code>s.<br><br>
+ * 
+ * A response is either a single record (an object) or, for batched downloads,
+ * an array of records. Parsing stops as soon as a single record has given up
+ * everything that is needed from it. Each <code>Thread</code> reuses its own
+ * parser (see <code>JSONParser.getThreadParser</code>), and the body is decoded
+ * from UTF-8 bytes by the parser itself rather than through a <code>Reader</code>,
+ * so decoding a response allocates little more than the values that are kept.
+ * 
+ * @author Tristan Currens
+ * @see MetascanOnlineInterface
+ */
+public class ScanResultDecoder implements ContentHandler {
+    
+    private static final String DATA_ID             = "data_id";
+    private static final String SCAN_RESULTS        = "scan_results";
+    private static final String IN_QUEUE            = "in_queue";
+    private static final String PROGRESS_PERCENTAGE = "progress_percentage";
+    private static final String SCAN_ALL_RESULT_I   = "scan_all_result_i";
+    private static final String SCAN_ALL_RESULT_A   = "scan_all_result_a";
+    
+    /**
+     * Flags for each of the fields of <code>scan_results</code>, which must all
+     * be present for the record to have a <code>ScanResult</code>.
+     */
+    private static final int HAS_IN_QUEUE            = 1;
+    private static final int HAS_PROGRESS_PERCENTAGE = 2;
+    private static final int HAS_SCAN_ALL_RESULT_I   = 4;
+    private static final int HAS_SCAN_ALL_RESULT_A   = 8;
+    private static final int HAS_ALL_FIELDS          = 15;
+    
+    /**
+     * The depth of the value being parsed; the top-level value is at depth 1.
+     */
+    private int depth = 0;
+    
+    /**
+     * The depth of the records: 1 for a single record, 2 for an array of records.
+     */
+    private int recordDepth = 1;
+    
+    private boolean batch = false;
+    private String recordKey;
+    private String resultKey;
+    private boolean inScanResults = false;
+    
+    private String dataID;
+    private int fields;
+    private int placeInQueue;
+    private int progressPercentage;
+    private int resultID;
+    private String resultString;
+    
+    /**
+     * The complete records of a batch, by data ID.
+     */
+    private final Map<String, ScanResult> scanResults = new HashMap();
+    
+    /**
+     * Decodes the body of a response.
+     * 
+     * @param body the body of the response
+     * @return the decoder holding the decoded fields, or <code>null</code> if the
+     * body is not valid JSON
+     * @throws IOException if the body could not be read
+     */
+    public static ScanResultDecoder decode(InputStream body) throws IOException {
+        if (body == null)
+            return null;
+        
+        ScanResultDecoder decoder = new ScanResultDecoder();
+        try {
+            JSONParser.getThreadParser().parse(body, decoder);
+        } catch (ParseException | NumberFormatException e) {
+            return null;
+        }
+        return decoder;
+    }
+    
+    /**
+     * Decodes JSON text.
+     * 
+     * @param data the JSON text
+     * @return the decoder holding the decoded fields, or <code>null</code> if the
+     * text is not valid JSON
+     */
+    public static ScanResultDecoder decode(String data) {
+        ScanResultDecoder decoder = new ScanResultDecoder();
+        try {
+            JSONParser.getThreadParser().parse(data, decoder);
+        } catch (ParseException | NumberFormatException e) {
+            return null;
+        }
+        return decoder;
+    }
+    
+    /**
+     * Checks if the response was an array of records.
+     * 
+     * @return <code>true</code> if it was; <code>false</code> if it was a single record
+     */
+    public boolean isBatch() {
+        return batch;
+    }
+    
+    /**
+     * Gets the data ID of a single record.
+     * 
+     * @return the data ID, or <code>null</code> if the record has none
+     */
+    public String getDataID() {
+        return dataID;
+    }
+    
+    /**
+     * Gets the <code>ScanResult</code> of a single record.
+     * 
+     * @return the <code>ScanResult</code>, or <code>null</code> if the record has no
+     * complete <code>scan_results</code>
+     */
+    public ScanResult getScanResult() {
+        if (batch || fields != HAS_ALL_FIELDS)
+            return null;
+        return new ScanResult(placeInQueue, progressPercentage, resultID, resultString);
+    }
+    
+    /**
+     * Gets the <code>ScanResult</code>s of a batch.
+     * 
+     * @return a mapping from data ID to <code>ScanResult</code> for every record
+     * that has both
+     */
+    public Map<String, ScanResult> getScanResults() {
+        return scanResults;
+    }
+    
+    @Override
+    public void startJSON() {}
+    
+    @Override
+    public void endJSON() {}
+    
+    @Override
+    public boolean startObject() {
+        if (depth == recordDepth - 1)
+            startRecord();
+        else if (depth == recordDepth && SCAN_RESULTS.equals(recordKey))
+            inScanResults = true;
+        depth++;
+        return true;
+    }
+    
+    @Override
+    public boolean endObject() {
+        depth--;
+        if (depth == recordDepth) {
+            inScanResults = false;
+            
+            // a single record has nothing more to give once both are known
+            return batch || dataID == null || fields != HAS_ALL_FIELDS;
+        }
+        if (depth == recordDepth - 1 && batch && dataID != null && fields == HAS_ALL_FIELDS)
+            scanResults.put(dataID, new ScanResult(placeInQueue, progressPercentage, resultID, resultString));
+        return true;
+    }
+    
+    @Override
+    public boolean startObjectEntry(String key) {
+        if (depth == recordDepth)
+            recordKey = key;
+        else if (inScanResults && depth == recordDepth + 1)
+            resultKey = key;
+        return true;
+    }
+    
+    @Override
+    public boolean endObjectEntry() {
+        if (depth == recordDepth)
+            recordKey = null;
+        else if (depth == recordDepth + 1)
+            resultKey = null;
+        return true;
+    }
+    
+    @Override
+    public boolean startArray() {
+        if (depth == 0) {
+            batch = true;
+            recordDepth = 2;
+        }
+        depth++;
+        return true;
+    }
+    
+    @Override
+    public boolean endArray() {
+        depth--;
+        return true;
+    }
+    
+    @Override
+    public boolean primitive(Object value) {
+        if (depth == recordDepth) {
+            if (DATA_ID.equals(recordKey) && value != null)
+                dataID = value.toString();
+        } else if (inScanResults && depth == recordDepth + 1 && value != null) {
+            if (IN_QUEUE.equals(resultKey)) {
+                placeInQueue = toInt(value);
+                fields |= HAS_IN_QUEUE;
+            } else if (PROGRESS_PERCENTAGE.equals(resultKey)) {
+                progressPercentage = toInt(value);
+                fields |= HAS_PROGRESS_PERCENTAGE;
+            } else if (SCAN_ALL_RESULT_I.equals(resultKey)) {
+                resultID = toInt(value);
+                fields |= HAS_SCAN_ALL_RESULT_I;
+            } else if (SCAN_ALL_RESULT_A.equals(resultKey)) {
+                resultString = value.toString();
+                fields |= HAS_SCAN_ALL_RESULT_A;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Forgets the fields of the previous record.
+     */
+    private void startRecord() {
+        recordKey = null;
+        resultKey = null;
+        inScanResults = false;
+        dataID = null;
+        fields = 0;
+        placeInQueue = 0;
+        progressPercentage = 0;
+        resultID = 0;
+        resultString = null;
+    }
+    
+    /**
+     * Converts a number, which the parser gives as a <code>Long</code> or a
+     * <code>Double</code>, to an <code>int</code> without going through a
+     * <code>String</code>; numbers sent as strings are parsed.
+     */
+    private static int toInt(Object value) {
+        if (value instanceof Number)
+            return ((Number) value).intValue();
+        return Integer.parseInt(value.toString());
+    }
+}
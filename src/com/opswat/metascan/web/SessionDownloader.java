@@ -1,48 +1,66 @@
 package com.opswat.metascan.web;
 
-import com.opswat.metascan.smartfolder.ScanManager;
 import com.opswat.metascan.smartfolder.ScanResult;
 import com.opswat.metascan.smartfolder.ScanSession;
+import com.opswat.metascan.smartfolder.settings.SettingsManager;
+import com.opswat.metascan.smartfolder.ui.UserInterfaceManager;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.DelayQueue;
 
 /**
- * Responsible for checking the <code>ScanManager</code> for <code>ScanSession</code>s
- * for which to download results.
- *
+ * Responsible for downloading the results of <code>ScanSession</code>s that have
+ * been uploaded to the Metascan Online server.
+ * 
+ * Each session is polled on its own schedule (see <code>PendingResult</code>),
+ * so finished results are picked up quickly while long-running scans are
+ * polled less often. Sessions that become due at the same time are downloaded
+ * together in a single request when the server supports it.
+ * 
  * @author Tristan Currens
  */
 public class SessionDownloader {
     
     /**
-     * The amount of time (in milliseconds) to wait between each attempt to download
-     * results for all of the currently existing <code>ScanSession</code>s.
+     * The maximum number of <code>ScanSession</code>s that will have their results
+     * downloaded in a single request.
      * 
-     * The default for this <code>Thread</code> is 5 seconds. Decreasing this value will
-     * increase the amount of processor time used by the <code>Thread</code>, and can
-     * lead to decreased performance on lower-end systems.
+     * This can be changed with the <code>smartfolder.download.batchSize</code> system property.
      */
-    private static final long SLEEP_TIME_MILLIS = 5000;
+    private static final int BATCH_SIZE = Math.max(1, Integer.getInteger("smartfolder.download.batchSize", 100));
     
-    private static boolean running = false;
+    /**
+     * The <code>ScanSession</code>s that are waiting for results, ordered by the
+     * time at which they should next be polled.
+     */
+    private static final DelayQueue<PendingResult> pendingResults = new DelayQueue();
+    
+    private static volatile boolean running = false;
     
     /**
      * Starts the <code>SessionDownloader</code>.
      * 
-     * This will create a new <code>Thread</code> that will loop through the
-     * <code>ScanSession</code>s that are currently present in the <code>ScanManager</code>.
-     * It will attempt to download results for all existing sessions.
+     * This will create a new <code>Thread</code> that waits for the next
+     * <code>ScanSession</code> to become due and downloads its results.
      */
-    public static void start() {
+    public static synchronized void start() {
         if (! running) {
             running = true;
             Thread sessionDownloaderThread = new Thread() {
                 @Override
                 public void run() {
                     while (running) {
-                        downloadResults();
                         try {
-                            Thread.sleep(SLEEP_TIME_MILLIS);
-                        }catch(InterruptedException e){}
+                            // wait for the next session, then take every other
+                            // session that is also due so they can share a request
+                            ArrayList<PendingResult> batch = new ArrayList();
+                            batch.add(pendingResults.take());
+                            pendingResults.drainTo(batch, BATCH_SIZE - 1);
+                            
+                            downloadResults(batch);
+                        } catch (InterruptedException e) {}
                     }
                 }
             };
@@ -51,45 +69,60 @@ public class SessionDownloader {
     }
     
     /**
-     * Attempts to loop through and download results for the <code>ScanSession</code>s 
-     * that are currently present in the <code>ScanManager</code>.
+     * Schedules results to be downloaded for the specified <code>ScanSession</code>.
      * 
-     * If a session is found to be complete, it will be sent back to the
-     * <code>ScanManager</code> for finalization. If a session is not complete, it
-     * will be recycled back to have results re-downloaded.
+     * @param session the <code>ScanSession</code> that was uploaded
+     * @return a future that is completed with the session once its scan is complete
      */
-    private static void downloadResults() {
-        ArrayList<ScanSession> incompleteSessions = new ArrayList();
-        
-        ScanSession session;
-        while ((session = ScanManager.getNextSessionForDownload()) != null) {
-            ScanSession updatedSession = download(session);
-            if (updatedSession != null) {
-                if (updatedSession.isComplete())
-                    ScanManager.finalizeSession(session);
-                else
-                    incompleteSessions.add(session);
-            } else {
-                incompleteSessions.add(session);
-            }
-        }
-        
-        for (ScanSession incompleteSession : incompleteSessions)
-            ScanManager.pushSessionForDownload(incompleteSession);
+    public static CompletableFuture<ScanSession> schedule(ScanSession session) {
+        PendingResult pendingResult = new PendingResult(session);
+        pendingResults.offer(pendingResult);
+        return pendingResult.getCompletion();
     }
     
     /**
-     * Attempts to download results for the specified <code>ScanSession</code>.
+     * Attempts to download results for a batch of <code>ScanSession</code>s that
+     * are due.
      * 
-     * @param session the <code>ScanSession</code> for which results should be downloaded
-     * @return an updated <code>ScanSession</code> with the newly updated results
+     * If the server supports it, all of the results are downloaded with a single
+     * request; otherwise each session is downloaded on its own.
+     * 
+     * If a session is found to be complete, its future will be completed so that
+     * the <code>ScanPipeline</code> can finalize it. If a session is not complete, it
+     * will be rescheduled to have its results re-downloaded.
+     * 
+     * @param batch the <code>ScanSession</code>s that are due
      */
-    private static ScanSession download(ScanSession session) {
-        ScanResult scanResult = MetascanOnlineInterface.downloadResults(session);
-        if (scanResult != null) {
-            session.setScanResult(scanResult);
-            return session;
+    private static void downloadResults(List<PendingResult> batch) {
+        Map<String, ScanResult> batchResults = null;
+        
+        if (!SettingsManager.hasApiKey()) {
+            UserInterfaceManager.notifyInvalidAPIKey();
+        } else if (batch.size() > 1 && MetascanOnlineInterface.isBatchDownloadSupported()) {
+            ArrayList<ScanSession> sessions = new ArrayList();
+            for (PendingResult pendingResult : batch)
+                sessions.add(pendingResult.getSession());
+            batchResults = MetascanOnlineInterface.downloadResults(sessions);
+        }
+        
+        for (PendingResult pendingResult : batch) {
+            ScanSession session = pendingResult.getSession();
+            ScanResult scanResult = null;
+            
+            if (batchResults != null)
+                scanResult = batchResults.get(session.getDataID());
+            else if (SettingsManager.hasApiKey())
+                scanResult = MetascanOnlineInterface.downloadResults(session);
+            
+            if (scanResult != null)
+                session.setScanResult(scanResult);
+            
+            if (scanResult != null && scanResult.isComplete()) {
+                pendingResult.getCompletion().complete(session);
+            } else {
+                pendingResult.reschedule(scanResult);
+                pendingResults.offer(pendingResult);
+            }
         }
-        return null;
     }
 }
@@ -1,20 +1,36 @@
 package com.opswat.metascan.web;
 
 import com.opswat.metascan.smartfolder.ScanManager;
+import com.opswat.metascan.smartfolder.ScanResult;
 import com.opswat.metascan.smartfolder.ScanSession;
 import com.opswat.metascan.smartfolder.ui.UserInterfaceManager;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Responsible for checking the <code>ScanManager</code> for <code>ScanSession</code>s
  * to upload.
  * 
+ * Uploads are performed by a pool of worker <code>Thread</code>s so that many
+ * <code>File</code>s can be sent to the Metascan Online server at once. The pool
+ * can be tuned with the following system properties:<ul>
+ * <li><b>smartfolder.upload.workers: </b> the number of worker <code>Thread</code>s (4 by default)</li>
+ * <li><b>smartfolder.upload.maxPerHost: </b> the number of uploads allowed to run
+ *                                            against a single host at once (4 by default)</li></ul>
+ * 
  * @author Tristan Currens
  */
 public class SessionUploader {
     
     /**
-     * The amount of time (in milliseconds) to wait between each attempt to upload
-     * all of the currently existing <code>File</code>s.
+     * The amount of time (in milliseconds) to wait before retrying a <code>File</code>
+     * that could not be uploaded.
      * 
      * The default for this <code>Thread</code> is 5 seconds. Decreasing this value will
      * increase the amount of processor time used by the <code>Thread</code>, and can
@@ -22,54 +38,239 @@ public class SessionUploader {
      */
     private static final long SLEEP_TIME_MILLIS = 5000;
     
-    private static boolean running = false;
+    /**
+     * The amount of time (in milliseconds) that an idle worker will wait for a
+     * new <code>ScanSession</code> before checking whether it should stop.
+     */
+    private static final long POLL_TIME_MILLIS = 1000;
+    
+    /**
+     * The amount of time (in milliseconds) to wait for uploads in progress to
+     * finish when the <code>SessionUploader</code> is stopped.
+     */
+    private static final long SHUTDOWN_TIME_MILLIS = 30000;
+    
+    /**
+     * The number of worker <code>Thread</code>s used to upload <code>File</code>s.
+     */
+    private static final int WORKER_COUNT = Math.max(1, Integer.getInteger("smartfolder.upload.workers", 4));
+    
+    /**
+     * The maximum number of uploads that may run against a single host at once.
+     */
+    private static final int MAX_UPLOADS_PER_HOST = Math.max(1, Integer.getInteger("smartfolder.upload.maxPerHost", 4));
+    
+    /**
+     * A mapping from host name to the permits for uploading to that host.
+     */
+    private static final ConcurrentHashMap<String, Semaphore> hostPermits = new ConcurrentHashMap();
+    
+    /**
+     * A mapping from each <code>ScanSession</code> waiting to be uploaded to the
+     * future that is completed once it has been.
+     */
+    private static final ConcurrentHashMap<ScanSession, CompletableFuture<ScanSession>> pendingUploads = new ConcurrentHashMap();
+    
+    /**
+     * The worker <code>Thread</code>s that upload <code>File</code>s.
+     */
+    private static ExecutorService workers;
+    
+    /**
+     * Schedules failed uploads to be retried at a later time.
+     */
+    private static ScheduledExecutorService retryScheduler;
+    
+    private static volatile boolean running = false;
     
     /**
      * Starts the <code>SessionUploader</code>.
      * 
-     * This will create a new <code>Thread</code> that will loop through the
-     * <code>File</code>s that are currently present in the <code>ScanManager</code>.
-     * It will attempt to upload data for all existing <code>File</code>s.
-     */
-    public static void start() {
-        if (!running){
-            Thread sessionUploaderThread = new Thread() {
-                @Override
-                public void run() {
-                    running = true;
-                    while (running) {
-                        uploadSessions();
-                        try {
-                            Thread.sleep(SLEEP_TIME_MILLIS);
-                        }catch(InterruptedException e){}
+     * This will create a pool of worker <code>Thread</code>s that take the
+     * <code>File</code>s that are currently present in the <code>ScanManager</code>
+     * and upload them in parallel.
+     */
+    public static synchronized void start() {
+        if (!running) {
+            running = true;
+            
+            workers = Executors.newFixedThreadPool(WORKER_COUNT);
+            retryScheduler = Executors.newSingleThreadScheduledExecutor();
+            
+            for (int i = 0; i < WORKER_COUNT; i++) {
+                workers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        while (running) {
+                            try {
+                                ScanSession session = ScanManager.getNextSessionForUpload(POLL_TIME_MILLIS);
+                                if (session != null)
+                                    uploadSession(session);
+                            } catch (InterruptedException e) {
+                                return;
+                            }
+                        }
                     }
-                }
-            };
-            sessionUploaderThread.start();
+                });
+            }
+        }
+    }
+    
+    /**
+     * Stops the <code>SessionUploader</code>.
+     * 
+     * Workers will stop taking new <code>ScanSession</code>s from the <code>ScanManager</code>,
+     * but uploads that are already in progress will be allowed to finish. The
+     * futures of the sessions that were not uploaded by then are cancelled, so
+     * that the <code>ScanPipeline</code> lets go of them.
+     */
+    public static synchronized void stop() {
+        if (running) {
+            running = false;
+            
+            workers.shutdown();
+            retryScheduler.shutdownNow();
+            try {
+                if (!workers.awaitTermination(SHUTDOWN_TIME_MILLIS, TimeUnit.MILLISECONDS))
+                    workers.shutdownNow();
+            } catch (InterruptedException e) {
+                workers.shutdownNow();
+            }
+            
+            for (ScanSession session : pendingUploads.keySet())
+                cancel(session);
+        }
+    }
+    
+    /**
+     * Schedules the specified <code>ScanSession</code> to be uploaded.
+     * 
+     * The session is queued in the <code>ScanManager</code>, where it will be
+     * taken by the next free worker.
+     * 
+     * @param session the <code>ScanSession</code> to upload
+     * @return a future that is completed with the session once it has been
+     * uploaded, or once its results were found on the server; it is cancelled
+     * if the <code>SessionUploader</code> is stopped first
+     */
+    public static CompletableFuture<ScanSession> schedule(ScanSession session) {
+        CompletableFuture<ScanSession> completion = new CompletableFuture();
+        if (!running) {
+            completion.cancel(false);
+            return completion;
         }
+        
+        pendingUploads.put(session, completion);
+        ScanManager.enqueueForUpload(session);
+        return completion;
     }
     
     /**
-     * Attempts to loop through and upload data for the <code>File</code>s 
-     * that are currently present in the <code>ScanManager</code>.
+     * Attempts to upload data for a single <code>File</code> that was taken
+     * from the <code>ScanManager</code>.
+     * 
+     * If the contents of a <code>File</code> have already been scanned by the
+     * Metascan Online server, the recorded result is looked up by its digest
+     * and the <code>File</code> is not uploaded.
      * 
      * If a <code>File</code> cannot be uploaded, it will be recycled back to the
      * <code>ScanManager</code> to be uploaded at a later time. This is usually
-     * the case when an API key is invalid, or no Internet connection exists
+     * the case when an API key is invalid, or no Internet connection exists.
+     * The session is put back without waiting, so one retry never holds up another.
+     * 
+     * If the server rejects the API key while looking up the digest, the
+     * <code>File</code> is not uploaded and the session fails.
+     * 
+     * @param session the <code>ScanSession</code> to upload
      */
-    private static void uploadSessions() {
-        ScanSession session;
-        while ((session = ScanManager.getNextSessionForUpload()) != null) {
-            UserInterfaceManager.getSmartFolderFrame().getConfigurationPanel().updateSessionStatus(session, "Uploading");
-            String dataID = upload(session);
-            
-            if (dataID != null) {
-                session.setDataID(dataID);
-                ScanManager.pushSessionForDownload(session);
-            } else {
-                ScanManager.pushSessionForUpload(session, true, false);
+    private static void uploadSession(final ScanSession session) throws InterruptedException {
+        UserInterfaceManager.getSmartFolderFrame().getConfigurationPanel().updateSessionStatus(session, "Uploading");
+        
+        ScanResult knownResult;
+        String dataID = null;
+        Semaphore permits = getHostPermits(MetascanOnlineInterface.getApiHost());
+        permits.acquire();
+        try {
+            knownResult = MetascanOnlineInterface.lookupHash(session);
+            if (knownResult == null || !knownResult.isComplete())
+                dataID = upload(session);
+        } catch (MetascanOnlineInterface.ApiKeyRejectedException e) {
+            fail(session, e);
+            return;
+        } finally {
+            permits.release();
+        }
+        
+        if (knownResult != null && knownResult.isComplete()) {
+            session.setScanResult(knownResult);
+            complete(session);
+        } else if (dataID != null) {
+            session.setDataID(dataID);
+            complete(session);
+        } else if (running) {
+            try {
+                retryScheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        ScanManager.enqueueForUpload(session);
+                    }
+                }, SLEEP_TIME_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                cancel(session);
             }
+        } else {
+            cancel(session);
+        }
+    }
+    
+    /**
+     * Completes the future of an uploaded <code>ScanSession</code>.
+     * 
+     * @param session the <code>ScanSession</code> that was uploaded
+     */
+    private static void complete(ScanSession session) {
+        CompletableFuture<ScanSession> completion = pendingUploads.remove(session);
+        if (completion != null)
+            completion.complete(session);
+    }
+    
+    /**
+     * Fails the future of a <code>ScanSession</code> that cannot be uploaded.
+     * 
+     * @param session the <code>ScanSession</code> that was not uploaded
+     * @param failure the reason the session could not be uploaded
+     */
+    private static void fail(ScanSession session, Throwable failure) {
+        CompletableFuture<ScanSession> completion = pendingUploads.remove(session);
+        if (completion != null)
+            completion.completeExceptionally(failure);
+    }
+    
+    /**
+     * Cancels the future of a <code>ScanSession</code> that will not be uploaded.
+     * 
+     * @param session the <code>ScanSession</code> that was not uploaded
+     */
+    private static void cancel(ScanSession session) {
+        CompletableFuture<ScanSession> completion = pendingUploads.remove(session);
+        if (completion != null)
+            completion.cancel(false);
+    }
+    
+    /**
+     * Gets the permits used to limit the number of concurrent uploads to the
+     * specified host.
+     * 
+     * @param host the host name
+     * @return the permits for the host
+     */
+    private static Semaphore getHostPermits(String host) {
+        Semaphore permits = hostPermits.get(host);
+        if (permits == null) {
+            hostPermits.putIfAbsent(host, new Semaphore(MAX_UPLOADS_PER_HOST));
+            permits = hostPermits.get(host);
         }
+        return permits;
     }
     
     /**
@@ -0,0 +1,127 @@
+package org.json.simple;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * A compact JSON array, which supports the java.util.List interface.
+ *
+ * The elements are kept in a single array that grows as needed, and numbers
+ * (Long and Double) are kept unboxed in a parallel long[], which is only
+ * allocated once the first number is added. Numbers are boxed again when they
+ * are read with get(); getLong() and getDouble() read them without boxing.
+ *
+ * @see org.json.simple.parser.CompactContainerFactory
+ */
+public class CompactJSONArray extends AbstractList implements List, RandomAccess, JSONAware, JSONStreamAware {
+	private static final Object[] EMPTY = new Object[0];
+
+	private Object[] values = EMPTY;
+	private long[] numbers = null;
+	private int size = 0;
+
+	public int size(){
+		return size;
+	}
+
+	public Object get(int index){
+		checkIndex(index);
+		return CompactNumbers.unpack(values[index], bitsAt(index));
+	}
+
+	/**
+	 * @return The element at the index as a long, or defaultValue if it is not a number.
+	 */
+	public long getLong(int index, long defaultValue){
+		checkIndex(index);
+		return CompactNumbers.toLong(values[index], bitsAt(index), defaultValue);
+	}
+
+	/**
+	 * @return The element at the index as a double, or defaultValue if it is not a number.
+	 */
+	public double getDouble(int index, double defaultValue){
+		checkIndex(index);
+		return CompactNumbers.toDouble(values[index], bitsAt(index), defaultValue);
+	}
+
+	public Object set(int index, Object value){
+		Object old = get(index);
+		store(index, value);
+		return old;
+	}
+
+	public void add(int index, Object value){
+		if(index < 0 || index > size)
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+
+		if(size == values.length)
+			grow();
+		System.arraycopy(values, index, values, index + 1, size - index);
+		if(numbers != null)
+			System.arraycopy(numbers, index, numbers, index + 1, size - index);
+		size++;
+		store(index, value);
+		modCount++;
+	}
+
+	public Object remove(int index){
+		Object old = get(index);
+		System.arraycopy(values, index + 1, values, index, size - index - 1);
+		if(numbers != null)
+			System.arraycopy(numbers, index + 1, numbers, index, size - index - 1);
+		values[--size] = null;
+		modCount++;
+		return old;
+	}
+
+	public void clear(){
+		Arrays.fill(values, 0, size, null);
+		size = 0;
+		modCount++;
+	}
+
+	private void store(int index, Object value){
+		if(CompactNumbers.isPackable(value)){
+			if(numbers == null)
+				numbers = new long[values.length];
+			numbers[index] = CompactNumbers.bits(value);
+			values[index] = CompactNumbers.tag(value);
+		}
+		else{
+			values[index] = value;
+		}
+	}
+
+	private long bitsAt(int index){
+		return numbers == null ? 0 : numbers[index];
+	}
+
+	private void grow(){
+		int capacity = size < 4 ? 4 : size + (size >> 1);
+		values = Arrays.copyOf(values, capacity);
+		if(numbers != null)
+			numbers = Arrays.copyOf(numbers, capacity);
+	}
+
+	private void checkIndex(int index){
+		if(index < 0 || index >= size)
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+	}
+
+	public void writeJSONString(Writer out) throws IOException{
+		JSONArray.writeJSONString(this, out);
+	}
+
+	public String toJSONString(){
+		return JSONArray.toJSONString(this);
+	}
+
+	public String toString(){
+		return toJSONString();
+	}
+}
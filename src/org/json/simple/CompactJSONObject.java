@@ -0,0 +1,279 @@
+package org.json.simple;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A compact JSON object, which supports the java.util.Map interface. Key value
+ * pairs are kept in the order in which they were first put.
+ *
+ * The keys and values are kept in flat arrays rather than in hash table
+ * entries, and numbers (Long and Double) are kept unboxed in a parallel long[],
+ * which is only allocated once the first number is put. Keys are found by
+ * a linear search, which is faster than hashing for the small objects that
+ * make up most JSON text; objects with more than 16 keys also keep a hash
+ * index of their keys.
+ *
+ * Numbers are boxed again when they are read with get(); getLong() and
+ * getDouble() read them without boxing.
+ *
+ * @see org.json.simple.parser.CompactContainerFactory
+ */
+public class CompactJSONObject extends AbstractMap implements Map, JSONAware, JSONStreamAware {
+	private static final Object[] EMPTY = new Object[0];
+
+	/**
+	 * The number of keys above which keys are found through the index.
+	 */
+	private static final int INDEX_THRESHOLD = 16;
+
+	private Object[] keys = EMPTY;
+	private Object[] values = EMPTY;
+	private long[] numbers = null;
+	private int size = 0;
+	private int modCount = 0;
+
+	/**
+	 * A mapping from key to slot, built when it is first needed, and dropped
+	 * whenever a key is removed.
+	 */
+	private HashMap index = null;
+
+	private Set entrySet = null;
+
+	public int size(){
+		return size;
+	}
+
+	public boolean containsKey(Object key){
+		return indexOf(key) >= 0;
+	}
+
+	public Object get(Object key){
+		int slot = indexOf(key);
+		return slot < 0 ? null : valueAt(slot);
+	}
+
+	/**
+	 * @return The value of the key as a long, or defaultValue if it is missing or not a number.
+	 */
+	public long getLong(Object key, long defaultValue){
+		int slot = indexOf(key);
+		return slot < 0 ? defaultValue : CompactNumbers.toLong(values[slot], bitsAt(slot), defaultValue);
+	}
+
+	/**
+	 * @return The value of the key as a double, or defaultValue if it is missing or not a number.
+	 */
+	public double getDouble(Object key, double defaultValue){
+		int slot = indexOf(key);
+		return slot < 0 ? defaultValue : CompactNumbers.toDouble(values[slot], bitsAt(slot), defaultValue);
+	}
+
+	public Object put(Object key, Object value){
+		int slot = indexOf(key);
+		if(slot >= 0){
+			Object old = valueAt(slot);
+			store(slot, value);
+			return old;
+		}
+
+		if(size == keys.length)
+			grow();
+		keys[size] = key;
+		store(size, value);
+		if(index != null)
+			index.put(key, Integer.valueOf(size));
+		size++;
+		modCount++;
+		return null;
+	}
+
+	public Object remove(Object key){
+		int slot = indexOf(key);
+		if(slot < 0)
+			return null;
+
+		Object old = valueAt(slot);
+		removeAt(slot);
+		return old;
+	}
+
+	public void clear(){
+		Arrays.fill(keys, 0, size, null);
+		Arrays.fill(values, 0, size, null);
+		size = 0;
+		index = null;
+		modCount++;
+	}
+
+	public Set entrySet(){
+		if(entrySet == null){
+			entrySet = new AbstractSet(){
+				public int size(){
+					return size;
+				}
+
+				public Iterator iterator(){
+					return new EntryIterator();
+				}
+			};
+		}
+		return entrySet;
+	}
+
+	private int indexOf(Object key){
+		if(size > INDEX_THRESHOLD){
+			if(index == null){
+				index = new HashMap(size * 2);
+				for(int i = 0; i < size; i++)
+					index.put(keys[i], Integer.valueOf(i));
+			}
+			Integer slot = (Integer)index.get(key);
+			return slot == null ? -1 : slot.intValue();
+		}
+
+		for(int i = 0; i < size; i++){
+			if(key == null ? keys[i] == null : key.equals(keys[i]))
+				return i;
+		}
+		return -1;
+	}
+
+	private Object valueAt(int slot){
+		return CompactNumbers.unpack(values[slot], bitsAt(slot));
+	}
+
+	private long bitsAt(int slot){
+		return numbers == null ? 0 : numbers[slot];
+	}
+
+	private void store(int slot, Object value){
+		if(CompactNumbers.isPackable(value)){
+			if(numbers == null)
+				numbers = new long[keys.length];
+			numbers[slot] = CompactNumbers.bits(value);
+			values[slot] = CompactNumbers.tag(value);
+		}
+		else{
+			values[slot] = value;
+		}
+	}
+
+	private void removeAt(int slot){
+		int moved = size - slot - 1;
+		System.arraycopy(keys, slot + 1, keys, slot, moved);
+		System.arraycopy(values, slot + 1, values, slot, moved);
+		if(numbers != null)
+			System.arraycopy(numbers, slot + 1, numbers, slot, moved);
+		size--;
+		keys[size] = null;
+		values[size] = null;
+		index = null;
+		modCount++;
+	}
+
+	private void grow(){
+		int capacity = size < 4 ? 4 : size + (size >> 1);
+		keys = Arrays.copyOf(keys, capacity);
+		values = Arrays.copyOf(values, capacity);
+		if(numbers != null)
+			numbers = Arrays.copyOf(numbers, capacity);
+	}
+
+	public void writeJSONString(Writer out) throws IOException{
+		JSONObject.writeJSONString(this, out);
+	}
+
+	public String toJSONString(){
+		return JSONObject.toJSONString(this);
+	}
+
+	public String toString(){
+		return toJSONString();
+	}
+
+	/**
+	 * Iterates over the slots in order, handing out entries that read and write through to them.
+	 */
+	private class EntryIterator implements Iterator {
+		private int next = 0;
+		private int last = -1;
+		private int expectedModCount = modCount;
+
+		public boolean hasNext(){
+			return next < size;
+		}
+
+		public Object next(){
+			if(modCount != expectedModCount)
+				throw new ConcurrentModificationException();
+			if(next >= size)
+				throw new NoSuchElementException();
+			last = next++;
+			return new Entry(last);
+		}
+
+		public void remove(){
+			if(last < 0)
+				throw new IllegalStateException();
+			if(modCount != expectedModCount)
+				throw new ConcurrentModificationException();
+			removeAt(last);
+			next = last;
+			last = -1;
+			expectedModCount = modCount;
+		}
+	}
+
+	private class Entry implements Map.Entry {
+		private final int slot;
+
+		Entry(int slot){
+			this.slot = slot;
+		}
+
+		public Object getKey(){
+			return keys[slot];
+		}
+
+		public Object getValue(){
+			return valueAt(slot);
+		}
+
+		public Object setValue(Object value){
+			Object old = valueAt(slot);
+			store(slot, value);
+			return old;
+		}
+
+		public boolean equals(Object o){
+			if(!(o instanceof Map.Entry))
+				return false;
+			Map.Entry e = (Map.Entry)o;
+			Object key = getKey();
+			Object value = getValue();
+			return (key == null ? e.getKey() == null : key.equals(e.getKey()))
+					&& (value == null ? e.getValue() == null : value.equals(e.getValue()));
+		}
+
+		public int hashCode(){
+			Object key = getKey();
+			Object value = getValue();
+			return (key == null ? 0 : key.hashCode()) ^ (value == null ? 0 : value.hashCode());
+		}
+
+		public String toString(){
+			return getKey() + "=" + getValue();
+		}
+	}
+}
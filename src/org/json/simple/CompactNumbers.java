@@ -0,0 +1,77 @@
+package org.json.simple;
+
+/**
+ * Stores the numbers held by the compact containers without their boxes.
+ *
+ * A slot whose value is a Long or a Double keeps one of the markers below in
+ * place of the value, and the number itself in a parallel long[]; a Double is
+ * kept as its raw bits. The box is only made again when the value is read.
+ *
+ * @see CompactJSONObject
+ * @see CompactJSONArray
+ */
+final class CompactNumbers {
+	/**
+	 * Marks a slot whose value is the long in its bits.
+	 */
+	static final Object LONG = new Object();
+
+	/**
+	 * Marks a slot whose value is the double whose raw bits are in its bits.
+	 */
+	static final Object DOUBLE = new Object();
+
+	private CompactNumbers(){
+	}
+
+	static boolean isPackable(Object value){
+		return value instanceof Long || value instanceof Double;
+	}
+
+	static Object tag(Object value){
+		return value instanceof Long ? LONG : DOUBLE;
+	}
+
+	static long bits(Object value){
+		if(value instanceof Long)
+			return ((Long)value).longValue();
+		return Double.doubleToRawLongBits(((Double)value).doubleValue());
+	}
+
+	/**
+	 * @return The value of a slot, boxing it again if it is a number.
+	 */
+	static Object unpack(Object value, long bits){
+		if(value == LONG)
+			return Long.valueOf(bits);
+		if(value == DOUBLE)
+			return Double.valueOf(Double.longBitsToDouble(bits));
+		return value;
+	}
+
+	/**
+	 * @return The value of a slot as a long, or defaultValue if it is not a number.
+	 */
+	static long toLong(Object value, long bits, long defaultValue){
+		if(value == LONG)
+			return bits;
+		if(value == DOUBLE)
+			return (long)Double.longBitsToDouble(bits);
+		if(value instanceof Number)
+			return ((Number)value).longValue();
+		return defaultValue;
+	}
+
+	/**
+	 * @return The value of a slot as a double, or defaultValue if it is not a number.
+	 */
+	static double toDouble(Object value, long bits, double defaultValue){
+		if(value == LONG)
+			return bits;
+		if(value == DOUBLE)
+			return Double.longBitsToDouble(bits);
+		if(value instanceof Number)
+			return ((Number)value).doubleValue();
+		return defaultValue;
+	}
+}
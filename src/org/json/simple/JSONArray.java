@@ -72,8 +72,18 @@ public class JSONArray extends ArrayList implements List, JSONAware, JSONStreamA
 		if(list == null)
 			return "null";
 		
+        StringBuilder sb = new StringBuilder();
+        toJSONString(list, sb);
+		return sb.toString();
+	}
+	
+	/**
+	 * Convert a list to JSON text and append it to sb.
+	 * 
+	 * @see #toJSONString(List)
+	 */
+	static void toJSONString(List list, StringBuilder sb){
         boolean first = true;
-        StringBuffer sb = new StringBuffer();
 		Iterator iter=list.iterator();
         
         sb.append('[');
@@ -88,10 +98,9 @@ public class JSONArray extends ArrayList implements List, JSONAware, JSONStreamA
 				sb.append("null");
 				continue;
 			}
-			sb.append(JSONValue.toJSONString(value));
+			JSONValue.toJSONString(value, sb);
 		}
         sb.append(']');
-		return sb.toString();
 	}
 
 	public String toJSONString(){
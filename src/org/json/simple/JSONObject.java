@@ -44,7 +44,7 @@ public class JSONObject extends HashMap implements Map, JSONAware, JSONStreamAwa
                 out.write(',');
 			Map.Entry entry=(Map.Entry)iter.next();
             out.write('\"');
-            out.write(escape(String.valueOf(entry.getKey())));
+            JSONValue.escape(String.valueOf(entry.getKey()), out);
             out.write('\"');
             out.write(':');
 			JSONValue.writeJSONString(entry.getValue(), out);
@@ -69,7 +69,17 @@ public class JSONObject extends HashMap implements Map, JSONAware, JSONStreamAwa
 		if(map == null)
 			return "null";
 		
-        StringBuffer sb = new StringBuffer();
+        StringBuilder sb = new StringBuilder();
+        toJSONString(map, sb);
+		return sb.toString();
+	}
+	
+	/**
+	 * Convert a map to JSON text and append it to sb.
+	 * 
+	 * @see #toJSONString(Map)
+	 */
+	static void toJSONString(Map map, StringBuilder sb){
         boolean first = true;
 		Iterator iter=map.entrySet().iterator();
 		
@@ -84,14 +94,13 @@ public class JSONObject extends HashMap implements Map, JSONAware, JSONStreamAwa
 			toJSONString(String.valueOf(entry.getKey()),entry.getValue(), sb);
 		}
         sb.append('}');
-		return sb.toString();
 	}
 	
 	public String toJSONString(){
 		return toJSONString(this);
 	}
 	
-	private static String toJSONString(String key,Object value, StringBuffer sb){
+	private static void toJSONString(String key,Object value, StringBuilder sb){
 		sb.append('\"');
         if(key == null)
             sb.append("null");
@@ -99,9 +108,7 @@ public class JSONObject extends HashMap implements Map, JSONAware, JSONStreamAwa
             JSONValue.escape(key, sb);
 		sb.append('\"').append(':');
 		
-		sb.append(JSONValue.toJSONString(value));
-		
-		return sb.toString();
+		JSONValue.toJSONString(value, sb);
 	}
 	
 	public String toString(){
@@ -109,7 +116,7 @@ public class JSONObject extends HashMap implements Map, JSONAware, JSONStreamAwa
 	}
 
 	public static String toString(String key,Object value){
-        StringBuffer sb = new StringBuffer();
+        StringBuilder sb = new StringBuilder();
 		toJSONString(key, value, sb);
         return sb.toString();
 	}
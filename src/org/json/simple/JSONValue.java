@@ -5,8 +5,8 @@
 package org.json.simple;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Reader;
-import java.io.StringReader;
 import java.io.Writer;
 import java.util.List;
 import java.util.Map;
@@ -19,9 +19,28 @@ import org.json.simple.parser.ParseException;
  * @author FangYidong<fangyidong@yahoo.com.cn>
  */
 public class JSONValue {
+	private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+	
+	/**
+	 * Which of the characters below U+00A0 must be escaped.
+	 */
+	private static final boolean[] ESCAPED = new boolean[0xA0];
+	
+	static{
+		for(int ch=0;ch<ESCAPED.length;ch++)
+			ESCAPED[ch] = ch<=0x1F || ch>=0x7F || ch=='"' || ch=='\\' || ch=='/';
+	}
+	
+	private static final ThreadLocal STREAM_WRITER = new ThreadLocal(){
+		protected Object initialValue(){
+			return new Utf8StreamWriter();
+		}
+	};
+	
 	/**
 	 * Parse JSON text into java object from the input source. 
 	 * Please use parseWithException() if you don't want to ignore the exception.
+	 * The calling thread's parser is reused, see JSONParser.getThreadParser().
 	 * 
 	 * @see org.json.simple.parser.JSONParser#parse(Reader)
 	 * @see #parseWithException(Reader)
@@ -38,7 +57,7 @@ public class JSONValue {
 	 */
 	public static Object parse(Reader in){
 		try{
-			JSONParser parser=new JSONParser();
+			JSONParser parser=JSONParser.getThreadParser();
 			return parser.parse(in);
 		}
 		catch(Exception e){
@@ -47,8 +66,13 @@ public class JSONValue {
 	}
 	
 	public static Object parse(String s){
-		StringReader in=new StringReader(s);
-		return parse(in);
+		try{
+			JSONParser parser=JSONParser.getThreadParser();
+			return parser.parse(s);
+		}
+		catch(Exception e){
+			return null;
+		}
 	}
 	
 	/**
@@ -69,12 +93,12 @@ public class JSONValue {
 	 * @throws ParseException
 	 */
 	public static Object parseWithException(Reader in) throws IOException, ParseException{
-		JSONParser parser=new JSONParser();
+		JSONParser parser=JSONParser.getThreadParser();
 		return parser.parse(in);
 	}
 	
 	public static Object parseWithException(String s) throws ParseException{
-		JSONParser parser=new JSONParser();
+		JSONParser parser=JSONParser.getThreadParser();
 		return parser.parse(s);
 	}
 	
@@ -100,7 +124,7 @@ public class JSONValue {
 		
 		if(value instanceof String){		
             out.write('\"');
-			out.write(escape((String)value));
+			escape((String)value, out);
             out.write('\"');
 			return;
 		}
@@ -153,6 +177,33 @@ public class JSONValue {
 		
 		out.write(value.toString());
 	}
+	
+	/**
+	 * Encode an object into JSON text and write it to out as UTF-8.
+	 * <p>
+	 * The text is encoded through a buffer that the calling thread reuses, so
+	 * neither a Writer nor the text itself is created for it. The stream is
+	 * neither flushed nor closed.
+	 * 
+	 * @see #writeJSONString(Object, Writer)
+	 * 
+	 * @param value
+	 * @param out
+	 */
+	public static void writeJSONString(Object value, OutputStream out) throws IOException {
+		Utf8StreamWriter writer=(Utf8StreamWriter)STREAM_WRITER.get();
+		if(writer.isInUse())
+			writer=new Utf8StreamWriter();
+		
+		writer.reset(out);
+		try{
+			writeJSONString(value, writer);
+			writer.finish();
+		}
+		finally{
+			writer.reset(null);
+		}
+	}
 
 	/**
 	 * Convert an object to JSON text.
@@ -172,8 +223,11 @@ public class JSONValue {
 		if(value == null)
 			return "null";
 		
-		if(value instanceof String)
-			return "\""+escape((String)value)+"\"";
+		if(value instanceof String || value instanceof Map || value instanceof List){
+			StringBuilder sb = new StringBuilder();
+			toJSONString(value, sb);
+			return sb.toString();
+		}
 		
 		if(value instanceof Double){
 			if(((Double)value).isInfinite() || ((Double)value).isNaN())
@@ -198,13 +252,57 @@ public class JSONValue {
 		if((value instanceof JSONAware))
 			return ((JSONAware)value).toJSONString();
 		
-		if(value instanceof Map)
-			return JSONObject.toJSONString((Map)value);
+		return value.toString();
+	}
+	
+	/**
+	 * Convert an object to JSON text and append it to sb.
+	 * <p>
+	 * Maps and Lists (including JSONObject and JSONArray, whose JSONAware
+	 * behaviour is the same) are appended entry by entry, without building
+	 * the text of each one separately.
+	 * 
+	 * @see #toJSONString(Object)
+	 */
+	static void toJSONString(Object value, StringBuilder sb){
+		if(value instanceof String){
+			sb.append('\"');
+			escape((String)value, sb);
+			sb.append('\"');
+			return;
+		}
 		
-		if(value instanceof List)
-			return JSONArray.toJSONString((List)value);
+		if(value instanceof JSONAware && !isPlainContainer(value)){
+			sb.append(((JSONAware)value).toJSONString());
+			return;
+		}
 		
-		return value.toString();
+		if(value instanceof Map){
+			JSONObject.toJSONString((Map)value, sb);
+			return;
+		}
+		
+		if(value instanceof List){
+			JSONArray.toJSONString((List)value, sb);
+			return;
+		}
+		
+		if(value instanceof Long || value instanceof Integer){
+			sb.append(((Number)value).longValue());
+			return;
+		}
+		
+		sb.append(toJSONString(value));
+	}
+	
+	/**
+	 * @return true if the value is one of the containers of this package, whose
+	 * JSON text is the same as that of any other Map or List.
+	 */
+	private static boolean isPlainContainer(Object value){
+		Class type = value.getClass();
+		return type == JSONObject.class || type == JSONArray.class
+				|| type == CompactJSONObject.class || type == CompactJSONArray.class;
 	}
 
 	/**
@@ -215,58 +313,116 @@ public class JSONValue {
 	public static String escape(String s){
 		if(s==null)
 			return null;
-        StringBuffer sb = new StringBuffer();
+		
+		// most strings need no escaping at all
+		int i=0;
+		while(i<s.length() && !needsEscape(s.charAt(i)))
+			i++;
+		if(i==s.length())
+			return s;
+		
+        StringBuilder sb = new StringBuilder(s.length() + 16);
         escape(s, sb);
         return sb.toString();
     }
 
     /**
+     * Runs of characters that need no escaping are appended in one go.
+     * 
      * @param s - Must not be null.
      * @param sb
      */
-    static void escape(String s, StringBuffer sb) {
-		for(int i=0;i<s.length();i++){
+    static void escape(String s, StringBuilder sb) {
+		int start=0;
+		int length=s.length();
+		for(int i=0;i<length;i++){
+			char ch=s.charAt(i);
+			if(!needsEscape(ch))
+				continue;
+			
+			if(start<i)
+				sb.append(s, start, i);
+			String sequence=escapeSequence(ch);
+			if(sequence!=null){
+				sb.append(sequence);
+			}
+			else{
+				sb.append('\\').append('u')
+					.append(HEX_DIGITS[(ch>>12)&0xF]).append(HEX_DIGITS[(ch>>8)&0xF])
+					.append(HEX_DIGITS[(ch>>4)&0xF]).append(HEX_DIGITS[ch&0xF]);
+			}
+			start=i+1;
+		}
+		if(start<length)
+			sb.append(s, start, length);
+	}
+	
+    /**
+     * Escape a string straight to a writer, writing runs of characters that
+     * need no escaping in one go.
+     * 
+     * @param s - Must not be null.
+     * @param out
+     */
+	static void escape(String s, Writer out) throws IOException {
+		int start=0;
+		int length=s.length();
+		for(int i=0;i<length;i++){
 			char ch=s.charAt(i);
-			switch(ch){
-			case '"':
-				sb.append("\\\"");
-				break;
-			case '\\':
-				sb.append("\\\\");
-				break;
-			case '\b':
-				sb.append("\\b");
-				break;
-			case '\f':
-				sb.append("\\f");
-				break;
-			case '\n':
-				sb.append("\\n");
-				break;
-			case '\r':
-				sb.append("\\r");
-				break;
-			case '\t':
-				sb.append("\\t");
-				break;
-			case '/':
-				sb.append("\\/");
-				break;
-			default:
-                //Reference: http://www.unicode.org/versions/Unicode5.1.0/
-				if((ch>='\u0000' && ch<='\u001F') || (ch>='\u007F' && ch<='\u009F') || (ch>='\u2000' && ch<='\u20FF')){
-					String ss=Integer.toHexString(ch);
-					sb.append("\\u");
-					for(int k=0;k<4-ss.length();k++){
-						sb.append('0');
-					}
-					sb.append(ss.toUpperCase());
-				}
-				else{
-					sb.append(ch);
-				}
+			if(!needsEscape(ch))
+				continue;
+			
+			if(start<i)
+				out.write(s, start, i-start);
+			String sequence=escapeSequence(ch);
+			if(sequence!=null){
+				out.write(sequence);
+			}
+			else{
+				out.write('\\');
+				out.write('u');
+				out.write(HEX_DIGITS[(ch>>12)&0xF]);
+				out.write(HEX_DIGITS[(ch>>8)&0xF]);
+				out.write(HEX_DIGITS[(ch>>4)&0xF]);
+				out.write(HEX_DIGITS[ch&0xF]);
 			}
-		}//for
+			start=i+1;
+		}
+		if(start<length)
+			out.write(s, start, length-start);
+	}
+	
+	private static boolean needsEscape(char ch){
+		//Reference: http://www.unicode.org/versions/Unicode5.1.0/
+		if(ch<ESCAPED.length)
+			return ESCAPED[ch];
+		return ch>='\u2000' && ch<='\u20FF';
+	}
+	
+	/**
+	 * @return The short escape sequence of a character, or null if it is escaped as \\uXXXX.
+	 */
+	private static String escapeSequence(char ch){
+		switch(ch){
+		case '"':
+			return "\\\"";
+		case '\\':
+			return "\\\\";
+		case '\b':
+			return "\\b";
+		case '\f':
+			return "\\f";
+		case '\n':
+			return "\\n";
+		case '\r':
+			return "\\r";
+		case '\t':
+			return "\\t";
+		case '/':
+			return "\\/";
+		default:
+			return null;
+		}
 	}
 
 }
@@ -0,0 +1,153 @@
+package org.json.simple;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+
+/**
+ * A writer that encodes text as UTF-8 straight into a byte buffer, which is
+ * written to an output stream whenever it fills up.
+ *
+ * Unlike an OutputStreamWriter, it can be pointed at a new stream with reset()
+ * and keeps its buffer, so writing JSON text to a stream allocates nothing.
+ * Unpaired surrogates are written as '?', as String.getBytes() would.
+ *
+ * @see JSONValue#writeJSONString(Object, OutputStream)
+ */
+final class Utf8StreamWriter extends Writer {
+	private static final int BUFFER_SIZE = 8192;
+
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	private int count = 0;
+	private char pendingHighSurrogate = 0;
+	private OutputStream out = null;
+
+	/**
+	 * Start writing to a new stream, dropping anything that was not written yet.
+	 *
+	 * @param out - The stream to write to, or null to release the current one.
+	 */
+	void reset(OutputStream out){
+		this.out = out;
+		count = 0;
+		pendingHighSurrogate = 0;
+	}
+
+	/**
+	 * @return true if the writer is writing to a stream.
+	 */
+	boolean isInUse(){
+		return out != null;
+	}
+
+	/**
+	 * Write everything that is buffered to the stream, without flushing the stream.
+	 */
+	void finish() throws IOException{
+		if(pendingHighSurrogate != 0){
+			pendingHighSurrogate = 0;
+			ensureRoom();
+			buffer[count++] = '?';
+		}
+		flushBuffer();
+	}
+
+	public void write(int c) throws IOException{
+		encode((char)c);
+	}
+
+	public void write(char[] cbuf, int off, int len) throws IOException{
+		for(int i = off; i < off + len; i++)
+			encode(cbuf[i]);
+	}
+
+	public void write(String str, int off, int len) throws IOException{
+		int end = off + len;
+		int i = off;
+		while(i < end){
+			// copy runs of ASCII without going through encode()
+			char ch = str.charAt(i);
+			if(ch < 0x80 && pendingHighSurrogate == 0){
+				int room = buffer.length - count;
+				if(room == 0){
+					flushBuffer();
+					room = buffer.length;
+				}
+				int runEnd = Math.min(end, i + room);
+				while(i < runEnd && (ch = str.charAt(i)) < 0x80){
+					buffer[count++] = (byte)ch;
+					i++;
+				}
+			}
+			else{
+				encode(ch);
+				i++;
+			}
+		}
+	}
+
+	public void flush() throws IOException{
+		flushBuffer();
+		out.flush();
+	}
+
+	/**
+	 * Write everything that is buffered, but leave the stream open.
+	 */
+	public void close() throws IOException{
+		finish();
+	}
+
+	private void encode(char ch) throws IOException{
+		ensureRoom();
+
+		if(pendingHighSurrogate != 0){
+			char high = pendingHighSurrogate;
+			pendingHighSurrogate = 0;
+			if(Character.isLowSurrogate(ch)){
+				int codePoint = Character.toCodePoint(high, ch);
+				buffer[count++] = (byte)(0xF0 | (codePoint >> 18));
+				buffer[count++] = (byte)(0x80 | ((codePoint >> 12) & 0x3F));
+				buffer[count++] = (byte)(0x80 | ((codePoint >> 6) & 0x3F));
+				buffer[count++] = (byte)(0x80 | (codePoint & 0x3F));
+				return;
+			}
+			buffer[count++] = '?';
+			ensureRoom();
+		}
+
+		if(ch < 0x80){
+			buffer[count++] = (byte)ch;
+		}
+		else if(ch < 0x800){
+			buffer[count++] = (byte)(0xC0 | (ch >> 6));
+			buffer[count++] = (byte)(0x80 | (ch & 0x3F));
+		}
+		else if(Character.isHighSurrogate(ch)){
+			pendingHighSurrogate = ch;
+		}
+		else if(Character.isLowSurrogate(ch)){
+			buffer[count++] = '?';
+		}
+		else{
+			buffer[count++] = (byte)(0xE0 | (ch >> 12));
+			buffer[count++] = (byte)(0x80 | ((ch >> 6) & 0x3F));
+			buffer[count++] = (byte)(0x80 | (ch & 0x3F));
+		}
+	}
+
+	/**
+	 * Make sure there is room in the buffer for the longest encoded character.
+	 */
+	private void ensureRoom() throws IOException{
+		if(count > buffer.length - 4)
+			flushBuffer();
+	}
+
+	private void flushBuffer() throws IOException{
+		if(count > 0){
+			out.write(buffer, 0, count);
+			count = 0;
+		}
+	}
+}
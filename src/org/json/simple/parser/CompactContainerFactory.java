@@ -0,0 +1,29 @@
+package org.json.simple.parser;
+
+import java.util.List;
+import java.util.Map;
+
+import org.json.simple.CompactJSONArray;
+import org.json.simple.CompactJSONObject;
+
+/**
+ * Container factory that creates the compact object model: CompactJSONObject
+ * for JSON objects and CompactJSONArray for JSON arrays.
+ *
+ * The compact containers keep their entries in flat arrays and their numbers
+ * unboxed, so a parsed document with many small objects (such as a scan report
+ * with an object for each engine) takes much less of the heap than with the
+ * default JSONObject and JSONArray. The factory holds no state, so one instance
+ * can be shared by any number of parsers.
+ *
+ * @see org.json.simple.parser.JSONParser#parse(java.io.Reader, ContainerFactory)
+ */
+public class CompactContainerFactory implements ContainerFactory {
+	public Map createObjectContainer(){
+		return new CompactJSONObject();
+	}
+
+	public List creatArrayContainer(){
+		return new CompactJSONArray();
+	}
+}
@@ -5,8 +5,8 @@
 package org.json.simple.parser;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Reader;
-import java.io.StringReader;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -18,6 +18,12 @@ import org.json.simple.JSONObject;
 /**
  * Parser for JSON text. Please note that JSONParser is NOT thread-safe.
  * 
+ * A parser (and the 16 KB buffer of its lexer) can be reused for any number
+ * of inputs; getThreadParser() gives each thread a parser of its own for that.
+ * Text that is already in memory can be parsed from a String or a char[]
+ * without going through a Reader, and UTF-8 text can be parsed straight from
+ * an InputStream through a byte buffer that the parser keeps.
+ * 
  * @author FangYidong<fangyidong@yahoo.com.cn>
  */
 public class JSONParser {
@@ -30,11 +36,31 @@ public class JSONParser {
 	public static final int S_END=6;
 	public static final int S_IN_ERROR=-1;
 	
+	private static final ThreadLocal THREAD_PARSER = new ThreadLocal(){
+		protected Object initialValue(){
+			return new JSONParser();
+		}
+	};
+	
+	private static final Yytoken EOF_TOKEN = new Yytoken(Yytoken.TYPE_EOF, null);
+	
 	private LinkedList handlerStatusStack;
 	private Yylex lexer = new Yylex((Reader)null);
 	private Yytoken token = null;
 	private int status = S_INIT;
 	
+	/**
+	 * Gets the parser of the calling thread, creating it the first time.
+	 * 
+	 * Every parse resets the parser, so it must not be used again (for example
+	 * by a ContentHandler) until the parse it is doing has finished.
+	 * 
+	 * @return The parser of the calling thread.
+	 */
+	public static JSONParser getThreadParser(){
+		return (JSONParser)THREAD_PARSER.get();
+	}
+	
 	private int peekStatus(LinkedList statusStack){
 		if(statusStack.size()==0)
 			return -1;
@@ -64,6 +90,16 @@ public class JSONParser {
 		reset();
 	}
 	
+	/**
+	 * Reset the parser to the initial state with a new UTF-8 input stream.
+	 * 
+	 * @param in - The new input stream, which is decoded as UTF-8.
+	 */
+	public void reset(InputStream in){
+		lexer.yyreset(in);
+		reset();
+	}
+	
 	/**
 	 * @return The position of the beginning of the current token.
 	 */
@@ -76,9 +112,35 @@ public class JSONParser {
 	}
 	
 	public Object parse(String s, ContainerFactory containerFactory) throws ParseException{
-		StringReader in=new StringReader(s);
+		lexer.yyreset(s);
+		reset();
+		try{
+			return parseValue(containerFactory);
+		}
+		catch(IOException ie){
+			/*
+			 * Actually it will never happen.
+			 */
+			throw new ParseException(-1, ParseException.ERROR_UNEXPECTED_EXCEPTION, ie);
+		}
+	}
+	
+	public Object parse(char[] input, int offset, int length) throws ParseException{
+		return parse(input, offset, length, (ContainerFactory)null);
+	}
+	
+	/**
+	 * Parse JSON text from a range of an array, without a reader.
+	 * 
+	 * The array is read in place, so it must not be changed while it is parsed.
+	 * 
+	 * @see #parse(Reader, ContainerFactory)
+	 */
+	public Object parse(char[] input, int offset, int length, ContainerFactory containerFactory) throws ParseException{
+		lexer.yyreset(input, offset, length);
+		reset();
 		try{
-			return parse(in, containerFactory);
+			return parseValue(containerFactory);
 		}
 		catch(IOException ie){
 			/*
@@ -92,6 +154,21 @@ public class JSONParser {
 		return parse(in, (ContainerFactory)null);
 	}
 	
+	public Object parse(InputStream in) throws IOException, ParseException{
+		return parse(in, (ContainerFactory)null);
+	}
+	
+	/**
+	 * Parse UTF-8 JSON text from a stream, without a reader and without
+	 * reading the whole text into memory first.
+	 * 
+	 * @see #parse(Reader, ContainerFactory)
+	 */
+	public Object parse(InputStream in, ContainerFactory containerFactory) throws IOException, ParseException{
+		reset(in);
+		return parseValue(containerFactory);
+	}
+	
 	/**
 	 * Parse JSON text into java object from the input source.
 	 * 	
@@ -110,6 +187,10 @@ public class JSONParser {
 	 */
 	public Object parse(Reader in, ContainerFactory containerFactory) throws IOException, ParseException{
 		reset(in);
+		return parseValue(containerFactory);
+	}
+	
+	private Object parseValue(ContainerFactory containerFactory) throws IOException, ParseException{
 		LinkedList statusStack = new LinkedList();
 		LinkedList valueStack = new LinkedList();
 		
@@ -121,17 +202,17 @@ public class JSONParser {
 					switch(token.type){
 					case Yytoken.TYPE_VALUE:
 						status=S_IN_FINISHED_VALUE;
-						statusStack.addFirst(new Integer(status));
+						statusStack.addFirst(Integer.valueOf(status));
 						valueStack.addFirst(token.value);
 						break;
 					case Yytoken.TYPE_LEFT_BRACE:
 						status=S_IN_OBJECT;
-						statusStack.addFirst(new Integer(status));
+						statusStack.addFirst(Integer.valueOf(status));
 						valueStack.addFirst(createObjectContainer(containerFactory));
 						break;
 					case Yytoken.TYPE_LEFT_SQUARE:
 						status=S_IN_ARRAY;
-						statusStack.addFirst(new Integer(status));
+						statusStack.addFirst(Integer.valueOf(status));
 						valueStack.addFirst(createArrayContainer(containerFactory));
 						break;
 					default:
@@ -154,7 +235,7 @@ public class JSONParser {
 							String key=(String)token.value;
 							valueStack.addFirst(key);
 							status=S_PASSED_PAIR_KEY;
-							statusStack.addFirst(new Integer(status));
+							statusStack.addFirst(Integer.valueOf(status));
 						}
 						else{
 							status=S_IN_ERROR;
@@ -194,7 +275,7 @@ public class JSONParser {
 						List newArray=createArrayContainer(containerFactory);
 						parent.put(key,newArray);
 						status=S_IN_ARRAY;
-						statusStack.addFirst(new Integer(status));
+						statusStack.addFirst(Integer.valueOf(status));
 						valueStack.addFirst(newArray);
 						break;
 					case Yytoken.TYPE_LEFT_BRACE:
@@ -204,7 +285,7 @@ public class JSONParser {
 						Map newObject=createObjectContainer(containerFactory);
 						parent.put(key,newObject);
 						status=S_IN_OBJECT;
-						statusStack.addFirst(new Integer(status));
+						statusStack.addFirst(Integer.valueOf(status));
 						valueStack.addFirst(newObject);
 						break;
 					default:
@@ -235,7 +316,7 @@ public class JSONParser {
 						Map newObject=createObjectContainer(containerFactory);
 						val.add(newObject);
 						status=S_IN_OBJECT;
-						statusStack.addFirst(new Integer(status));
+						statusStack.addFirst(Integer.valueOf(status));
 						valueStack.addFirst(newObject);
 						break;
 					case Yytoken.TYPE_LEFT_SQUARE:
@@ -243,7 +324,7 @@ public class JSONParser {
 						List newArray=createArrayContainer(containerFactory);
 						val.add(newArray);
 						status=S_IN_ARRAY;
-						statusStack.addFirst(new Integer(status));
+						statusStack.addFirst(Integer.valueOf(status));
 						valueStack.addFirst(newArray);
 						break;
 					default:
@@ -268,7 +349,7 @@ public class JSONParser {
 	private void nextToken() throws ParseException, IOException{
 		token = lexer.yylex();
 		if(token == null)
-			token = new Yytoken(Yytoken.TYPE_EOF, null);
+			token = EOF_TOKEN;
 	}
 	
 	private Map createObjectContainer(ContainerFactory containerFactory){
@@ -296,9 +377,13 @@ public class JSONParser {
 	}
 	
 	public void parse(String s, ContentHandler contentHandler, boolean isResume) throws ParseException{
-		StringReader in=new StringReader(s);
+		if(!isResume || handlerStatusStack == null){
+			lexer.yyreset(s);
+			reset();
+			handlerStatusStack = new LinkedList();
+		}
 		try{
-			parse(in, contentHandler, isResume);
+			parseContent(contentHandler);
 		}
 		catch(IOException ie){
 			/*
@@ -312,6 +397,23 @@ public class JSONParser {
 		parse(in, contentHandler, false);
 	}
 	
+	public void parse(InputStream in, ContentHandler contentHandler) throws IOException, ParseException{
+		parse(in, contentHandler, false);
+	}
+	
+	/**
+	 * Stream processing of UTF-8 JSON text from a stream, without a reader.
+	 * 
+	 * @see #parse(Reader, ContentHandler, boolean)
+	 */
+	public void parse(InputStream in, ContentHandler contentHandler, boolean isResume) throws IOException, ParseException{
+		if(!isResume || handlerStatusStack == null){
+			reset(in);
+			handlerStatusStack = new LinkedList();
+		}
+		parseContent(contentHandler);
+	}
+	
 	/**
 	 * Stream processing of JSON text.
 	 * 
@@ -339,6 +441,32 @@ public class JSONParser {
 			}
 		}
 		
+		parseContent(contentHandler);
+	}
+	
+	/**
+	 * Stream processing of JSON text from a range of an array, without a reader.
+	 * 
+	 * The array is read in place, so it must not be changed while it is parsed.
+	 * 
+	 * @see #parse(Reader, ContentHandler, boolean)
+	 */
+	public void parse(char[] input, int offset, int length, ContentHandler contentHandler) throws ParseException{
+		lexer.yyreset(input, offset, length);
+		reset();
+		handlerStatusStack = new LinkedList();
+		try{
+			parseContent(contentHandler);
+		}
+		catch(IOException ie){
+			/*
+			 * Actually it will never happen.
+			 */
+			throw new ParseException(-1, ParseException.ERROR_UNEXPECTED_EXCEPTION, ie);
+		}
+	}
+	
+	private void parseContent(ContentHandler contentHandler) throws IOException, ParseException{
 		LinkedList statusStack = handlerStatusStack;	
 		
 		try{
@@ -350,19 +478,19 @@ public class JSONParser {
 					switch(token.type){
 					case Yytoken.TYPE_VALUE:
 						status=S_IN_FINISHED_VALUE;
-						statusStack.addFirst(new Integer(status));
+						statusStack.addFirst(Integer.valueOf(status));
 						if(!contentHandler.primitive(token.value))
 							return;
 						break;
 					case Yytoken.TYPE_LEFT_BRACE:
 						status=S_IN_OBJECT;
-						statusStack.addFirst(new Integer(status));
+						statusStack.addFirst(Integer.valueOf(status));
 						if(!contentHandler.startObject())
 							return;
 						break;
 					case Yytoken.TYPE_LEFT_SQUARE:
 						status=S_IN_ARRAY;
-						statusStack.addFirst(new Integer(status));
+						statusStack.addFirst(Integer.valueOf(status));
 						if(!contentHandler.startArray())
 							return;
 						break;
@@ -392,7 +520,7 @@ public class JSONParser {
 						if(token.value instanceof String){
 							String key=(String)token.value;
 							status=S_PASSED_PAIR_KEY;
-							statusStack.addFirst(new Integer(status));
+							statusStack.addFirst(Integer.valueOf(status));
 							if(!contentHandler.startObjectEntry(key))
 								return;
 						}
@@ -432,17 +560,17 @@ public class JSONParser {
 						break;
 					case Yytoken.TYPE_LEFT_SQUARE:
 						statusStack.removeFirst();
-						statusStack.addFirst(new Integer(S_IN_PAIR_VALUE));
+						statusStack.addFirst(Integer.valueOf(S_IN_PAIR_VALUE));
 						status=S_IN_ARRAY;
-						statusStack.addFirst(new Integer(status));
+						statusStack.addFirst(Integer.valueOf(status));
 						if(!contentHandler.startArray())
 							return;
 						break;
 					case Yytoken.TYPE_LEFT_BRACE:
 						statusStack.removeFirst();
-						statusStack.addFirst(new Integer(S_IN_PAIR_VALUE));
+						statusStack.addFirst(Integer.valueOf(S_IN_PAIR_VALUE));
 						status=S_IN_OBJECT;
-						statusStack.addFirst(new Integer(status));
+						statusStack.addFirst(Integer.valueOf(status));
 						if(!contentHandler.startObject())
 							return;
 						break;
@@ -484,13 +612,13 @@ public class JSONParser {
 						break;
 					case Yytoken.TYPE_LEFT_BRACE:
 						status=S_IN_OBJECT;
-						statusStack.addFirst(new Integer(status));
+						statusStack.addFirst(Integer.valueOf(status));
 						if(!contentHandler.startObject())
 							return;
 						break;
 					case Yytoken.TYPE_LEFT_SQUARE:
 						status=S_IN_ARRAY;
-						statusStack.addFirst(new Integer(status));
+						statusStack.addFirst(Integer.valueOf(status));
 						if(!contentHandler.startArray())
 							return;
 						break;
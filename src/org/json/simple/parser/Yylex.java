@@ -10,6 +10,9 @@ class Yylex {
   /** initial size of the lookahead buffer */
   private static final int ZZ_BUFFERSIZE = 16384;
 
+  /** initial size of the buffer that UTF-8 input is read into */
+  private static final int ZZ_BYTE_BUFFERSIZE = 8192;
+
   /** lexical states */
   public static final int YYINITIAL = 0;
   public static final int STRING_BEGIN = 2;
@@ -220,6 +223,21 @@ class Yylex {
   /** the input device */
   private java.io.Reader zzReader;
 
+  /** the UTF-8 input device, used instead of zzReader when it is set */
+  private java.io.InputStream zzStream;
+
+  /** the buffer that UTF-8 input is read into; it is kept across resets */
+  private byte zzByteBuffer[];
+
+  /** the position of the next byte to decode in zzByteBuffer */
+  private int zzBytePos;
+
+  /** the end of the bytes that have been read into zzByteBuffer */
+  private int zzByteEnd;
+
+  /** the low half of a surrogate pair that did not fit in zzBuffer, or 0 */
+  private char zzPendingLowSurrogate;
+
   /** the current state of the DFA */
   private int zzState;
 
@@ -230,6 +248,10 @@ class Yylex {
       the source of the yytext() string */
   private char zzBuffer[] = new char[ZZ_BUFFERSIZE];
 
+  /** the buffer that input from a reader is read into; zzBuffer is
+      only something else while scanning an array given to yyreset */
+  private char zzReaderBuffer[] = zzBuffer;
+
   /** the textposition at the last accepting state */
   private int zzMarkedPos;
 
@@ -264,7 +286,14 @@ class Yylex {
   private boolean zzAtEOF;
 
   /* user code: */
-private StringBuffer sb=new StringBuffer();
+private StringBuilder sb=new StringBuilder();
+
+private static final Yytoken LEFT_BRACE=new Yytoken(Yytoken.TYPE_LEFT_BRACE,null);
+private static final Yytoken RIGHT_BRACE=new Yytoken(Yytoken.TYPE_RIGHT_BRACE,null);
+private static final Yytoken LEFT_SQUARE=new Yytoken(Yytoken.TYPE_LEFT_SQUARE,null);
+private static final Yytoken RIGHT_SQUARE=new Yytoken(Yytoken.TYPE_RIGHT_SQUARE,null);
+private static final Yytoken COMMA=new Yytoken(Yytoken.TYPE_COMMA,null);
+private static final Yytoken COLON=new Yytoken(Yytoken.TYPE_COLON,null);
 
 int getPosition(){
 	return yychar;
@@ -320,6 +349,10 @@ int getPosition(){
    */
   private boolean zzRefill() throws java.io.IOException {
 
+    /* an array given to yyreset is all the input there is */
+    if (zzReader == null && zzStream == null)
+      return true;
+
     /* first: make room (if you can) */
     if (zzStartRead > 0) {
       System.arraycopy(zzBuffer, zzStartRead,
@@ -338,12 +371,13 @@ int getPosition(){
       /* if not: blow it up */
       char newBuffer[] = new char[zzCurrentPos*2];
       System.arraycopy(zzBuffer, 0, newBuffer, 0, zzBuffer.length);
-      zzBuffer = newBuffer;
+      zzBuffer = zzReaderBuffer = newBuffer;
     }
 
     /* finally: fill the buffer with new input */
-    int numRead = zzReader.read(zzBuffer, zzEndRead,
-                                            zzBuffer.length-zzEndRead);
+    int numRead = zzStream != null
+      ? zzReadUtf8(zzBuffer, zzEndRead, zzBuffer.length-zzEndRead)
+      : zzReader.read(zzBuffer, zzEndRead, zzBuffer.length-zzEndRead);
 
     if (numRead > 0) {
       zzEndRead+= numRead;
@@ -374,6 +408,110 @@ int getPosition(){
 
     if (zzReader != null)
       zzReader.close();
+    if (zzStream != null)
+      zzStream.close();
+  }
+
+
+  /**
+   * Decodes UTF-8 input from zzStream into a range of an array.
+   *
+   * Malformed input is replaced with U+FFFD, as an InputStreamReader would.
+   * This only waits for more input when nothing has been decoded yet.
+   *
+   * @return the number of characters decoded, or -1 at the end of the input
+   */
+  private int zzReadUtf8(char[] cbuf, int off, int len) throws java.io.IOException {
+    int n = 0;
+    if (zzPendingLowSurrogate != 0 && len > 0) {
+      cbuf[off + n++] = zzPendingLowSurrogate;
+      zzPendingLowSurrogate = 0;
+    }
+
+    while (n < len) {
+      if (zzBytePos == zzByteEnd && (n > 0 || !zzFillBytes(1)))
+        break;
+
+      int b = zzByteBuffer[zzBytePos] & 0xFF;
+      if (b < 0x80) {
+        /* ASCII, which is nearly all of any JSON text */
+        zzBytePos++;
+        cbuf[off + n++] = (char) b;
+        continue;
+      }
+
+      int count = b >= 0xF0 ? 4 : b >= 0xE0 ? 3 : b >= 0xC0 ? 2 : 1;
+      if (zzByteEnd - zzBytePos < count) {
+        if (n > 0)
+          break;
+        zzFillBytes(count);
+      }
+
+      /* decode the sequence, or as much of it as is well-formed */
+      int codePoint = b & (0x7F >> count);
+      int consumed = 1;
+      boolean valid = count > 1 && b <= 0xF4;
+      while (valid && consumed < count) {
+        if (zzBytePos + consumed == zzByteEnd) {
+          valid = false;
+        } else {
+          int c = zzByteBuffer[zzBytePos + consumed];
+          if ((c & 0xC0) != 0x80) {
+            valid = false;
+          } else {
+            codePoint = (codePoint << 6) | (c & 0x3F);
+            consumed++;
+          }
+        }
+      }
+      if (valid) {
+        if (count == 2)
+          valid = codePoint >= 0x80;
+        else if (count == 3)
+          valid = codePoint >= 0x800 && !Character.isSurrogate((char) codePoint);
+        else
+          valid = codePoint >= 0x10000 && codePoint <= 0x10FFFF;
+      }
+      zzBytePos += consumed;
+
+      if (!valid) {
+        cbuf[off + n++] = '\uFFFD';
+      } else if (codePoint < 0x10000) {
+        cbuf[off + n++] = (char) codePoint;
+      } else {
+        cbuf[off + n++] = Character.highSurrogate(codePoint);
+        if (n < len)
+          cbuf[off + n++] = Character.lowSurrogate(codePoint);
+        else
+          zzPendingLowSurrogate = Character.lowSurrogate(codePoint);
+      }
+    }
+
+    return n == 0 ? -1 : n;
+  }
+
+
+  /**
+   * Reads from zzStream until at least the given number of bytes are
+   * waiting to be decoded, or until the end of the input.
+   *
+   * @return <code>true</code>, iff that many bytes are waiting.
+   */
+  private boolean zzFillBytes(int needed) throws java.io.IOException {
+    /* make room at the end of the buffer */
+    if (zzBytePos > 0) {
+      System.arraycopy(zzByteBuffer, zzBytePos, zzByteBuffer, 0, zzByteEnd-zzBytePos);
+      zzByteEnd-= zzBytePos;
+      zzBytePos = 0;
+    }
+
+    while (zzByteEnd < needed) {
+      int numRead = zzStream.read(zzByteBuffer, zzByteEnd, zzByteBuffer.length-zzByteEnd);
+      if (numRead < 0)
+        return false;
+      zzByteEnd+= numRead;
+    }
+    return true;
   }
 
 
@@ -389,6 +527,8 @@ int getPosition(){
    */
   public final void yyreset(java.io.Reader reader) {
     zzReader = reader;
+    zzStream = null;
+    zzBuffer = zzReaderBuffer;
     zzAtBOL  = true;
     zzAtEOF  = false;
     zzEndRead = zzStartRead = 0;
@@ -398,6 +538,64 @@ int getPosition(){
   }
 
 
+  /**
+   * Resets the scanner to read UTF-8 input straight from a stream, without
+   * a reader.
+   *
+   * The bytes are read into a buffer that is kept and reused by every
+   * later reset, so no buffers are allocated for each input.
+   *
+   * @param in   the UTF-8 input stream
+   */
+  final void yyreset(java.io.InputStream in) {
+    yyreset((java.io.Reader)null);
+    if (zzByteBuffer == null)
+      zzByteBuffer = new byte[ZZ_BYTE_BUFFERSIZE];
+    zzStream = in;
+    zzBytePos = zzByteEnd = 0;
+    zzPendingLowSurrogate = 0;
+  }
+
+
+  /**
+   * Resets the scanner to read a range of an array, without a reader.
+   *
+   * The array is scanned in place, so it must not be changed until the
+   * scanner has been reset again.
+   *
+   * @param input    the characters to scan
+   * @param offset   the index of the first character to scan
+   * @param length   the number of characters to scan
+   */
+  final void yyreset(char[] input, int offset, int length) {
+    yyreset((java.io.Reader)null);
+    zzBuffer = input;
+    zzStartRead = zzCurrentPos = zzMarkedPos = offset;
+    zzEndRead = offset + length;
+  }
+
+
+  /**
+   * Resets the scanner to read a sequence of characters, without a reader.
+   *
+   * The characters are copied into the scanner's own buffer, unless they
+   * do not fit in it, in which case they are copied into an array that is
+   * only kept until the next reset.
+   *
+   * @param input   the characters to scan
+   */
+  final void yyreset(CharSequence input) {
+    int length = input.length();
+    char[] buffer = length <= zzReaderBuffer.length ? zzReaderBuffer : new char[length];
+    if (input instanceof String)
+      ((String) input).getChars(0, length, buffer, 0);
+    else
+      for (int i = 0; i < length; i++)
+        buffer[i] = input.charAt(i);
+    yyreset(buffer, 0, length);
+  }
+
+
   /**
    * Returns the current lexical state.
    */
@@ -583,7 +781,7 @@ int getPosition(){
           }
         case 27: break;
         case 6: 
-          { return new Yytoken(Yytoken.TYPE_RIGHT_BRACE,null);
+          { return RIGHT_BRACE;
           }
         case 28: break;
         case 23: 
@@ -611,7 +809,7 @@ int getPosition(){
           }
         case 34: break;
         case 8: 
-          { return new Yytoken(Yytoken.TYPE_RIGHT_SQUARE,null);
+          { return RIGHT_SQUARE;
           }
         case 35: break;
         case 19: 
@@ -623,7 +821,7 @@ int getPosition(){
           }
         case 37: break;
         case 10: 
-          { return new Yytoken(Yytoken.TYPE_COLON,null);
+          { return COLON;
           }
         case 38: break;
         case 14: 
@@ -631,7 +829,7 @@ int getPosition(){
           }
         case 39: break;
         case 5: 
-          { return new Yytoken(Yytoken.TYPE_LEFT_BRACE,null);
+          { return LEFT_BRACE;
           }
         case 40: break;
         case 17: 
@@ -653,7 +851,7 @@ int getPosition(){
           }
         case 43: break;
         case 7: 
-          { return new Yytoken(Yytoken.TYPE_LEFT_SQUARE,null);
+          { return LEFT_SQUARE;
           }
         case 44: break;
         case 2: 
@@ -665,7 +863,7 @@ int getPosition(){
           }
         case 46: break;
         case 9: 
-          { return new Yytoken(Yytoken.TYPE_COMMA,null);
+          { return COMMA;
           }
         case 47: break;
         case 3: 